@@ -0,0 +1,97 @@
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Profile pictures, decoded once and pre-rendered as circular bitmaps.
+ *
+ * Each avatar is rendered the first time it is asked for at a given size and
+ * display scale: resampled with bicubic interpolation, masked to an
+ * antialiased circle and stored in an image compatible with the screen. After
+ * that, painting an avatar on any message row is a plain drawImage blit with
+ * no clip, no scaling and no antialiasing work.
+ */
+public class AvatarCache {
+
+    private static final Color PLACEHOLDER = new Color(200, 200, 200);
+
+    private final BufferedImage[] sources;
+    private final Map<Long, BufferedImage> rendered = new ConcurrentHashMap<>();
+
+    public AvatarCache(String... paths) {
+        sources = new BufferedImage[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            try {
+                sources[i] = ImageIO.read(new File(paths[i]));
+            } catch (IOException e) {
+                System.out.println("Could not load avatar " + paths[i] + ": " + e.getMessage());
+            }
+            if (sources[i] == null) {
+                System.out.println("No avatar image at " + paths[i] + ", using a placeholder");
+            }
+        }
+    }
+
+    public int count() {
+        return sources.length;
+    }
+
+    /**
+     * Avatar for a user, picked from the name so it stays the same across
+     * reconnects, which hand out a new id each time.
+     */
+    public int indexFor(String name) {
+        return name == null ? 0 : Math.floorMod(name.hashCode(), sources.length);
+    }
+
+    /**
+     * The circular avatar at the given size in user space, rendered for the
+     * scale of the target graphics so it is blitted 1:1 onto device pixels.
+     */
+    public BufferedImage get(int index, int size, Graphics2D target) {
+        AffineTransform transform = target.getTransform();
+        double scale = Math.max(1.0, Math.max(transform.getScaleX(), transform.getScaleY()));
+        return get(index, size, scale, target.getDeviceConfiguration());
+    }
+
+    public BufferedImage get(int index, int size, double scale, GraphicsConfiguration gc) {
+        int scaleKey = (int) Math.round(scale * 100);
+        long key = ((long) index << 40) | ((long) size << 20) | scaleKey;
+        return rendered.computeIfAbsent(key, k -> render(index, (int) Math.ceil(size * scale), gc));
+    }
+
+    /**
+     * The avatar as an icon at scale 1, for dialogs and buttons.
+     */
+    public ImageIcon icon(int index, int size) {
+        return new ImageIcon(get(index, size, 1.0, null));
+    }
+
+    private BufferedImage render(int index, int pixels, GraphicsConfiguration gc) {
+        BufferedImage image = gc != null
+                ? gc.createCompatibleImage(pixels, pixels, Transparency.TRANSLUCENT)
+                : new BufferedImage(pixels, pixels, BufferedImage.TYPE_INT_ARGB_PRE);
+
+        Graphics2D g2 = image.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+
+        g2.setColor(PLACEHOLDER);
+        g2.fillOval(0, 0, pixels, pixels);
+        BufferedImage source = sources[index];
+        if (source != null) {
+            // Paint the picture only where the antialiased circle already is
+            g2.setComposite(AlphaComposite.SrcIn);
+            g2.drawImage(source, 0, 0, pixels, pixels, null);
+        }
+        g2.dispose();
+        return image;
+    }
+}
@@ -0,0 +1,205 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of byte arrays for frame reads and writes, so a busy connection
+ * reuses the same few arrays instead of allocating one or two per frame.
+ *
+ * Sizes are rounded up to a power of two between MIN_SIZE and MAX_SIZE;
+ * bigger requests are plain allocations that are never pooled. Each thread
+ * keeps a few arrays per size class of its own, and behind that is a
+ * bounded shared queue per class, so the usual acquire/release on one
+ * handler thread touches no shared state at all.
+ *
+ * An acquired array is usually longer than asked for: callers must carry
+ * the length they use alongside it. Arrays must be released exactly once
+ * and not touched afterwards. With chat.pool.debug set, every lease is
+ * tracked with the stack that took it: double releases throw, released
+ * arrays are poisoned, and {@link #reportLeaks} lists leases held too long.
+ */
+public final class BufferPool {
+
+    private static final int MIN_SHIFT = 8;   // 256 B
+    private static final int MAX_SHIFT = 16;  // 64 KiB
+    static final int MIN_SIZE = 1 << MIN_SHIFT;
+    static final int MAX_SIZE = 1 << MAX_SHIFT;
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    private static final int LOCAL_CAPACITY = 4;
+    private static final int SHARED_CAPACITY = Integer.getInteger("chat.pool.shared", 256);
+    private static final boolean DEBUG = Boolean.getBoolean("chat.pool.debug");
+    private static final byte POISON = (byte) 0xDE;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ConcurrentLinkedQueue<byte[]>[] shared = new ConcurrentLinkedQueue[CLASSES];
+    private final AtomicInteger[] sharedCounts = new AtomicInteger[CLASSES];
+    private final ThreadLocal<LocalCache> local = ThreadLocal.withInitial(LocalCache::new);
+
+    private final LongAdder acquires = new LongAdder();
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder unpooled = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    // Debug only: arrays currently handed out, with where and when
+    private final Map<byte[], Lease> leases = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    public BufferPool() {
+        for (int i = 0; i < CLASSES; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+            sharedCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @return an array of at least minLength bytes; its contents are undefined
+     */
+    public byte[] acquire(int minLength) {
+        if (minLength > MAX_SIZE) {
+            unpooled.increment();
+            return new byte[minLength];
+        }
+        acquires.increment();
+        int sizeClass = sizeClass(minLength);
+        byte[] buffer = local.get().poll(sizeClass);
+        if (buffer != null) {
+            localHits.increment();
+        } else if ((buffer = shared[sizeClass].poll()) != null) {
+            sharedCounts[sizeClass].decrementAndGet();
+            sharedHits.increment();
+        } else {
+            allocations.increment();
+            buffer = new byte[MIN_SIZE << sizeClass];
+        }
+        if (DEBUG) {
+            leases.put(buffer, new Lease());
+        }
+        return buffer;
+    }
+
+    /**
+     * Give an array from {@link #acquire} back. Arrays that are not one of
+     * the pool's sizes (the unpooled big ones) are left to the GC.
+     */
+    public void release(byte[] buffer) {
+        int sizeClass = classOf(buffer.length);
+        if (sizeClass < 0) {
+            return;
+        }
+        if (DEBUG) {
+            if (leases.remove(buffer) == null) {
+                throw new IllegalStateException("Buffer of " + buffer.length
+                    + " bytes released twice or not taken from this pool");
+            }
+            Arrays.fill(buffer, POISON);
+        }
+        releases.increment();
+        if (local.get().offer(sizeClass, buffer)) {
+            return;
+        }
+        if (sharedCounts[sizeClass].incrementAndGet() <= SHARED_CAPACITY) {
+            shared[sizeClass].offer(buffer);
+        } else {
+            sharedCounts[sizeClass].decrementAndGet();
+            discarded.increment();
+        }
+    }
+
+    /**
+     * Share of pooled acquires served without allocating, 0 to 1.
+     */
+    public double hitRate() {
+        long total = acquires.sum();
+        return total == 0 ? 1 : (localHits.sum() + sharedHits.sum()) / (double) total;
+    }
+
+    public String stats() {
+        return String.format("acquires=%d hitRate=%.3f local=%d shared=%d allocated=%d unpooled=%d"
+                + " released=%d discarded=%d", acquires.sum(), hitRate(), localHits.sum(),
+            sharedHits.sum(), allocations.sum(), unpooled.sum(), releases.sum(), discarded.sum());
+    }
+
+    /**
+     * In debug mode, log every array held for longer than maxAgeMs with the
+     * stack that acquired it.
+     *
+     * @return how many were found
+     */
+    public int reportLeaks(long maxAgeMs) {
+        if (!DEBUG) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - maxAgeMs;
+        List<Lease> old = new ArrayList<>();
+        synchronized (leases) {
+            for (Lease lease : leases.values()) {
+                if (lease.since < cutoff) {
+                    old.add(lease);
+                }
+            }
+        }
+        for (Lease lease : old) {
+            System.err.println("[BufferPool] Buffer held for "
+                + (System.currentTimeMillis() - lease.since) + " ms, acquired at:");
+            lease.site.printStackTrace();
+        }
+        return old.size();
+    }
+
+    private static int sizeClass(int length) {
+        if (length <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * @return the class an array of exactly this length belongs to, or -1
+     */
+    private static int classOf(int length) {
+        if (length < MIN_SIZE || length > MAX_SIZE || Integer.bitCount(length) != 1) {
+            return -1;
+        }
+        return Integer.numberOfTrailingZeros(length) - MIN_SHIFT;
+    }
+
+    /**
+     * A handful of arrays per size class for one thread.
+     */
+    private static final class LocalCache {
+        private final byte[][][] buffers = new byte[CLASSES][LOCAL_CAPACITY][];
+        private final int[] counts = new int[CLASSES];
+
+        byte[] poll(int sizeClass) {
+            if (counts[sizeClass] == 0) {
+                return null;
+            }
+            int top = --counts[sizeClass];
+            byte[] buffer = buffers[sizeClass][top];
+            buffers[sizeClass][top] = null;
+            return buffer;
+        }
+
+        boolean offer(int sizeClass, byte[] buffer) {
+            if (counts[sizeClass] == LOCAL_CAPACITY) {
+                return false;
+            }
+            buffers[sizeClass][counts[sizeClass]++] = buffer;
+            return true;
+        }
+    }
+
+    private static final class Lease {
+        final Throwable site = new Throwable("Buffer acquired");
+        final long since = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,213 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One chat event as it travels from the server to clients: a nested KLV
+ * value with a field per attribute, built once by the server and decoded
+ * directly by clients. Bodies are length-prefixed, so newlines, tabs or
+ * anything else a user types survive history and rendering untouched.
+ *
+ *   TYPE:n:MSG|DM|JOIN|NAME|QUIT event type (ASCII)
+ *   FROM:4:<int>                sender id (big-endian)
+ *   TO  :4:<int>                recipient id; only on DM
+ *   USER:n:<name>               sender name (UTF-8); only on JOIN and NAME,
+ *                               everything else is resolved through the id
+ *   SEQ :8:<long>               server sequence number (big-endian)
+ *   TIME:8:<long>               server timestamp, epoch millis (big-endian)
+ *   BODY:n:<text>               message text (UTF-8); previous name for NAME
+ */
+public class ChatRecord {
+
+    /** Type of records made up on the client for plain text frames like TIME. */
+    public static final String INFO = "INFO";
+
+    final String type;
+    final int senderId;
+    final String senderName;
+    final long seq;
+    final long timestamp;
+    final String body;
+    // -1 except on direct messages
+    final int recipientId;
+
+    public ChatRecord(String type, int senderId, String senderName, long seq, long timestamp, String body) {
+        this(type, senderId, senderName, seq, timestamp, body, -1);
+    }
+
+    public ChatRecord(String type, int senderId, String senderName, long seq, long timestamp, String body,
+                      int recipientId) {
+        this.type = type;
+        this.senderId = senderId;
+        this.senderName = senderName;
+        this.seq = seq;
+        this.timestamp = timestamp;
+        this.body = body;
+        this.recipientId = recipientId;
+    }
+
+    /**
+     * A local, senderless record for text that did not come as a record.
+     */
+    public static ChatRecord text(String body) {
+        return new ChatRecord(INFO, -1, null, 0, System.currentTimeMillis(), body);
+    }
+
+    /**
+     * The same record with its seq set, for events numbered when published.
+     */
+    public ChatRecord withSeq(long seq) {
+        return new ChatRecord(type, senderId, senderName, seq, timestamp, body, recipientId);
+    }
+
+    public boolean isMessage() {
+        return type.equals("MSG") || type.equals(INFO) || isDirect();
+    }
+
+    public boolean isDirect() {
+        return type.equals("DM");
+    }
+
+    /**
+     * Who a message is from, as shown above its bubble: the sender, or
+     * "sender → recipient" for a direct message.
+     */
+    public String heading(UserTable users) {
+        if (!isDirect()) {
+            return senderName(users);
+        }
+        String recipient = users.name(recipientId);
+        return senderName(users) + " \u2192 " + (recipient != null ? recipient : "user#" + recipientId);
+    }
+
+    /**
+     * The sender's name, from the record itself or the id table.
+     */
+    public String senderName(UserTable users) {
+        if (senderName != null) {
+            return senderName;
+        }
+        if (senderId < 0) {
+            return null;
+        }
+        String name = users.name(senderId);
+        return name != null ? name : "user#" + senderId;
+    }
+
+    /**
+     * Human readable line for this record, as shown for system events.
+     */
+    public String describe(UserTable users) {
+        switch (type) {
+            case "JOIN":
+                return senderName(users) + " joined";
+            case "NAME":
+                return body + " has changed their name to " + senderName(users);
+            case "QUIT":
+                return senderName(users) + " has left :(";
+            case INFO:
+                return body;
+            case "DM":
+                return "[DM] " + heading(users) + ": " + body;
+            default:
+                return senderName(users) + ": " + body;
+        }
+    }
+
+    public byte[] encode() {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        byte[] nameBytes = senderName == null ? null : senderName.getBytes(StandardCharsets.UTF_8);
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+
+        int size = (8 + typeBytes.length) + (8 + 4) + (8 + 8) + (8 + 8) + (8 + bodyBytes.length);
+        if (nameBytes != null) {
+            size += 8 + nameBytes.length;
+        }
+        if (recipientId >= 0) {
+            size += 8 + 4;
+        }
+
+        byte[] data = new byte[size];
+        int offset = putField(data, 0, "TYPE", typeBytes);
+        offset = putHeader(data, offset, "FROM", 4);
+        offset = putInt(data, offset, senderId);
+        if (recipientId >= 0) {
+            offset = putHeader(data, offset, "TO", 4);
+            offset = putInt(data, offset, recipientId);
+        }
+        if (nameBytes != null) {
+            offset = putField(data, offset, "USER", nameBytes);
+        }
+        offset = putHeader(data, offset, "SEQ", 8);
+        offset = putLong(data, offset, seq);
+        offset = putHeader(data, offset, "TIME", 8);
+        offset = putLong(data, offset, timestamp);
+        putField(data, offset, "BODY", bodyBytes);
+        return data;
+    }
+
+    public static ChatRecord decode(byte[] data) {
+        return decode(new KLVCursor(data));
+    }
+
+    /**
+     * Decode the record whose fields the cursor walks. Unknown fields are
+     * skipped so new ones can be added without breaking older clients.
+     */
+    public static ChatRecord decode(KLVCursor fields) {
+        String type = null;
+        int senderId = -1;
+        String senderName = null;
+        long seq = 0;
+        long timestamp = 0;
+        String body = "";
+        int recipientId = -1;
+
+        while (fields.next()) {
+            if (fields.keyIs("TYPE")) {
+                type = fields.valueString();
+            } else if (fields.keyIs("FROM")) {
+                senderId = fields.valueInt();
+            } else if (fields.keyIs("USER")) {
+                senderName = fields.valueString();
+            } else if (fields.keyIs("SEQ")) {
+                seq = fields.valueLong();
+            } else if (fields.keyIs("TIME")) {
+                timestamp = fields.valueLong();
+            } else if (fields.keyIs("BODY")) {
+                body = fields.valueString();
+            } else if (fields.keyIs("TO")) {
+                recipientId = fields.valueInt();
+            }
+        }
+
+        if (type == null) {
+            throw new IllegalArgumentException("Record has no TYPE field");
+        }
+        return new ChatRecord(type, senderId, senderName, seq, timestamp, body, recipientId);
+    }
+
+    private static int putField(byte[] data, int offset, String key, byte[] value) {
+        offset = putHeader(data, offset, key, value.length);
+        System.arraycopy(value, 0, data, offset, value.length);
+        return offset + value.length;
+    }
+
+    private static int putHeader(byte[] data, int offset, String key, int length) {
+        for (int i = 0; i < key.length(); i++) {
+            data[offset + i] = (byte) key.charAt(i);
+        }
+        return putInt(data, offset + 4, length);
+    }
+
+    private static int putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+        return offset + 4;
+    }
+
+    private static int putLong(byte[] data, int offset, long value) {
+        putInt(data, offset, (int) (value >>> 32));
+        return putInt(data, offset + 4, (int) value);
+    }
+}
@@ -0,0 +1,64 @@
+import java.awt.*;
+
+/**
+ * Colour palette for the chat window, and the single place the current one
+ * is kept.
+ *
+ * Message rows never store colours: the renderer asks {@link #current()}
+ * every time it paints, so switching themes is a reference swap plus one
+ * repaint, with no per-message mutation and no layout pass.
+ */
+public final class ChatTheme {
+
+    // Shared by every palette so bubble caches keyed by colour stay small
+    static final Color LIVE_BUBBLE = new Color(230, 230, 230);
+    static final Color HISTORY_BUBBLE = new Color(200, 220, 240);
+    static final Font USERNAME_FONT = new Font(Font.DIALOG, Font.PLAIN, 10);
+
+    public static final ChatTheme LIGHT = new ChatTheme(false,
+            new Color(245, 246, 250), new Color(52, 73, 94), new Color(245, 246, 250), Color.WHITE,
+            Color.WHITE, Color.BLACK, Color.BLACK,
+            LIVE_BUBBLE, HISTORY_BUBBLE);
+
+    public static final ChatTheme DARK = new ChatTheme(true,
+            Color.DARK_GRAY, Color.DARK_GRAY, Color.GRAY, Color.GRAY,
+            Color.GRAY, Color.WHITE, Color.WHITE,
+            LIVE_BUBBLE, HISTORY_BUBBLE);
+
+    private static volatile ChatTheme current = LIGHT;
+
+    final boolean dark;
+    final Color windowBackground;
+    final Color headerBackground;
+    final Color messageBackground;
+    final Color viewportBackground;
+    final Color inputBackground;
+    final Color inputForeground;
+    final Color usernameForeground;
+    final Color liveBubble;
+    final Color historyBubble;
+
+    private ChatTheme(boolean dark, Color windowBackground, Color headerBackground,
+                      Color messageBackground, Color viewportBackground,
+                      Color inputBackground, Color inputForeground, Color usernameForeground,
+                      Color liveBubble, Color historyBubble) {
+        this.dark = dark;
+        this.windowBackground = windowBackground;
+        this.headerBackground = headerBackground;
+        this.messageBackground = messageBackground;
+        this.viewportBackground = viewportBackground;
+        this.inputBackground = inputBackground;
+        this.inputForeground = inputForeground;
+        this.usernameForeground = usernameForeground;
+        this.liveBubble = liveBubble;
+        this.historyBubble = historyBubble;
+    }
+
+    public static ChatTheme current() {
+        return current;
+    }
+
+    public static void setCurrent(ChatTheme theme) {
+        current = theme;
+    }
+}
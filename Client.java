@@ -2,18 +2,89 @@ import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Client {
 
+    private static final int CONNECT_TIMEOUT_MS = Integer.getInteger("chat.connectTimeout", 5000);
+    // Idle time between frames is fine; this bounds how long a frame may stall
+    private static final int READ_TIMEOUT_MS = Integer.getInteger("chat.readTimeout", 30000);
+    private static final int OUTBOX_CAPACITY = 1024;
+    private static final int CLOSE_TIMEOUT_MS = 2000;
+    // Reconnect delays double from the base up to the cap, with full jitter
+    // so a server restart is not met by every client at the same instant
+    private static final long RECONNECT_BASE_MS = Long.getLong("chat.reconnectBase", 500);
+    private static final long RECONNECT_MAX_MS = Long.getLong("chat.reconnectMax", 30000);
+    // Missed messages are fetched in pages of this size after a reconnect
+    private static final int RESUME_PAGE_SIZE = 200;
+    // A READ reply carries up to the server's whole history, so it is read
+    // item by item instead of into one array. Each item is still bounded.
+    private static final int MAX_HISTORY_FRAME = Integer.getInteger("chat.maxHistoryFrame", 64 << 20);
+    private static final int MAX_HISTORY_ITEM = 64 * 1024;
+    // Once the server has been seen to send PINGs, this much silence means
+    // the connection is dead even if TCP has not noticed
+    private static final long SERVER_IDLE_TIMEOUT_MS = Long.getLong("chat.serverIdleTimeout", 60000);
+
     private final String host;
     private final int port;
-    private Socket socket;
+    private volatile Socket socket;
     private InputStream input;
     private OutputStream output;
+
+    // Every write goes through the writer thread, so callers (the EDT
+    // included) never block on the socket. Frames queued while the
+    // connection is down wait here and are sent after reconnecting.
+    private final BlockingDeque<OutgoingFrame> outbox = new LinkedBlockingDeque<>(OUTBOX_CAPACITY);
+    // Replaced on every reconnect by the listener thread, read by the EDT too
+    private volatile Thread writer;
+    private volatile boolean closed = false;
+    // Set once we have said QUIT, so the server hanging up is not a drop
+    private volatile boolean quitting = false;
+
+    // What a reconnect needs: who we are and how far we had read
+    private volatile int selfId = -1;
+    // Server run lastSeq belongs to; a restarted server numbers from 1 again
+    private volatile long serverEpoch = 0;
+    private volatile long lastSeq = 0;
+    private volatile boolean resuming = false;
+    private volatile long resumeAfter = 0;
+    // Set by a BUSY frame: the server asked us to wait this long before reconnecting
+    private volatile long retryAfterMs = 0;
+    private volatile boolean serverPings = false;
+    private final Set<Long> seenWhileResuming = ConcurrentHashMap.newKeySet();
     private ClientGui gui;
+    private KLVCodec codec = new KLVCodec();
+    private final UserTable users = new UserTable();
+    // Ids of everyone online: a WHO snapshot kept current by PRES diffs
+    private final Set<Integer> online = ConcurrentHashMap.newKeySet();
+    // While typing, TYPN:1 is repeated this often so the indicator stays up
+    private static final long TYPING_REFRESH_MS = 3000;
+    private long typingSentAt = 0;
+    private boolean typingShown = false;
+    // The last search, so "more" can ask for the next page of it
+    private static final int SEARCH_PAGE = 10;
+    private volatile String lastQuery = null;
+    private volatile int nextSearchOffset = 0;
     private static String username;
 
+    // Implicit-ack mode: the server answers MSG with an ACK instead of RESP + MSG
+    private boolean requestImplicitAck = false;
+    private volatile boolean optsPending = false;
+    private volatile boolean implicitAck = false;
+    private final AtomicInteger nextRequestId = new AtomicInteger(0);
+    private final Map<Integer, String> pendingMessages = new ConcurrentHashMap<>();
+
     public Client(String host, int port) {
         this.host = host;
         this.port = port;
@@ -23,11 +94,31 @@ public class Client {
         this.gui = gui;
     }
 
+    public UserTable users() {
+        return users;
+    }
+
+    /**
+     * Choose the framing for outgoing frames. The server mirrors whichever
+     * framing it sees, so this is all it takes to negotiate compact frames;
+     * the client's own choice does not change with what the server sends.
+     */
+    public void setFraming(KLVCodec.Framing framing) {
+        this.codec = new KLVCodec(framing);
+    }
+
+    /**
+     * Ask the server to acknowledge successful commands through their echo
+     * and only send RESP on errors. Takes effect once the server accepts it.
+     */
+    public void setImplicitAck(boolean implicitAck) {
+        this.requestImplicitAck = implicitAck;
+    }
+
     public boolean connect() {
         try {
-            socket = new Socket(host, port);
-            input = socket.getInputStream();
-            output = socket.getOutputStream();
+            openSocket();
+            startWriter();
 
             System.out.println("=".repeat(70));
             System.out.println("Connected to " + host + ":" + port);
@@ -48,137 +139,278 @@ public class Client {
         }
     }
 
-    public void send(String key, String valueStr) {
-        try {
-            byte[] message = KLVExample.encodeKLV(key,
-                valueStr.getBytes(StandardCharsets.UTF_8));
+    private void openSocket() throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        socket.setSoTimeout(READ_TIMEOUT_MS);
+        input = new BufferedInputStream(socket.getInputStream());
+        output = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    private void startWriter() {
+        Socket connection = socket;
+        OutputStream out = output;
+        writer = new Thread(() -> writeLoop(connection, out), "client-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Change our name, and remember it for rejoining after a reconnect.
+     */
+    public CompletableFuture<Void> rename(String name) {
+        username = name;
+        return send("NAME", name);
+    }
 
-            System.out.println("\n→ Sending: " + key + ":" + valueStr.length() + ":" + valueStr);
-            output.write(message);
-            System.out.println("Hex sent: " + Client.bytesToHex(message));
-            output.flush();
+    /**
+     * Leave the chat; the server closing the connection afterwards is
+     * expected and does not trigger a reconnect.
+     */
+    public CompletableFuture<Void> quit() {
+        quitting = true;
+        return send("QUIT", "");
+    }
 
+    /**
+     * Send a chat message. In implicit-ack mode it is tagged with a request id
+     * so the server's ACK (or error RESP) can be matched back to it.
+     */
+    public CompletableFuture<Void> sendMessage(String text) {
+        if (!implicitAck) {
+            return send("MSG", text);
+        }
+        try {
+            int requestId = nextRequestId.incrementAndGet();
+            List<KLVExample.KLVMessage> fields = new ArrayList<>();
+            fields.add(new KLVExample.KLVMessage("RQID",
+                String.valueOf(requestId).getBytes(StandardCharsets.US_ASCII)));
+            fields.add(new KLVExample.KLVMessage("BODY", text.getBytes(StandardCharsets.UTF_8)));
+            pendingMessages.put(requestId, text);
+            System.out.println("\n→ Sending: MSG #" + requestId + ":" + text);
+            return send("MSG", KLVExample.encodeKLVItems(fields));
         } catch (Exception e) {
             System.err.println("! Error sending: " + e.getMessage());
+            return CompletableFuture.failedFuture(e);
         }
     }
 
-    private KLVMessage readKLVFromSocket() throws IOException {
-        byte[] keyBytes = recvExact(4);
-        if (keyBytes == null) return null;
-
-        byte[] lengthBytes = recvExact(4);
-        if (lengthBytes == null) return null;
-
-        ByteBuffer lengthBuffer = ByteBuffer.wrap(lengthBytes);
-        int length = lengthBuffer.getInt();
+    public CompletableFuture<Void> send(String key, String valueStr) {
+        System.out.println("\n→ Sending: " + key + ":" + valueStr.length() + ":" + valueStr);
+        return send(key, valueStr.getBytes(StandardCharsets.UTF_8));
+    }
 
-        byte[] valueBytes = recvExact(length);
-        if (valueBytes == null) return null;
+    /**
+     * Queue a frame for the writer thread without blocking.
+     *
+     * @return completes once the frame has been written and flushed, or
+     *         exceptionally if the queue is full or the connection is gone
+     */
+    public CompletableFuture<Void> send(String key, byte[] value) {
+        OutgoingFrame frame;
+        try {
+            frame = new OutgoingFrame(key, codec.encode(key, value));
+        } catch (IllegalArgumentException e) {
+            System.err.println("! Error sending: " + e.getMessage());
+            return CompletableFuture.failedFuture(e);
+        }
+        if (closed || writer == null) {
+            // writer is only null before the first connect
+            return CompletableFuture.failedFuture(new IOException("Not connected"));
+        }
+        if (!outbox.offer(frame)) {
+            System.err.println("! Error sending: send queue is full");
+            return CompletableFuture.failedFuture(new IOException("Send queue is full"));
+        }
+        if (closed) {
+            // Lost a race with close(); make sure nothing is left waiting
+            failQueued(new IOException("Connection closed"));
+        }
+        return frame.sent;
+    }
 
-        int keyLength = 4;
-        for (int i = 0; i < 4; i++) {
-            if (keyBytes[i] == 0) {
-                keyLength = i;
-                break;
+    /**
+     * Writer thread for one connection: take whatever is queued, write it in
+     * one go and flush once per batch. If the connection fails or the thread
+     * is stopped for a reconnect, the unsent batch goes back to the front of
+     * the queue for the next connection's writer. A writer that outlives its
+     * connection (the join on reconnect timed out) only ever closes the
+     * socket it was started with, never the one that replaced it.
+     */
+    private void writeLoop(Socket connection, OutputStream output) {
+        List<OutgoingFrame> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(outbox.take());
+                outbox.drainTo(batch);
+                boolean closing = false;
+                for (OutgoingFrame frame : batch) {
+                    if (frame == OutgoingFrame.CLOSE) {
+                        closing = true;
+                        continue;
+                    }
+                    output.write(frame.bytes);
+                    System.out.println("Hex sent: " + Client.bytesToHex(frame.bytes));
+                }
+                output.flush();
+                for (OutgoingFrame frame : batch) {
+                    frame.sent.complete(null);
+                }
+                batch.clear();
+                if (closing) {
+                    return;
+                }
             }
+        } catch (IOException e) {
+            System.err.println("! Error sending: " + e.getMessage());
+            requeue(batch);
+            // Wakes the listener, which reconnects
+            closeSocket(connection);
+        } catch (InterruptedException e) {
+            requeue(batch);
         }
-        String key = new String(keyBytes, 0, keyLength, StandardCharsets.US_ASCII);
+    }
 
-        return new KLVMessage(key, valueBytes);
+    /**
+     * Put an unsent batch back at the head of the queue, in order. Frames
+     * may have partly reached the server before a failure, so a replay can
+     * deliver one of them twice.
+     */
+    private void requeue(List<OutgoingFrame> batch) {
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            OutgoingFrame frame = batch.get(i);
+            if (frame != OutgoingFrame.CLOSE && !outbox.offerFirst(frame)) {
+                frame.sent.completeExceptionally(new IOException("Send queue is full"));
+            }
+        }
     }
 
-    private byte[] recvExact(int numBytes) throws IOException {
-        byte[] data = new byte[numBytes];
-        int totalRead = 0;
+    /**
+     * Reconnect after the connection dropped: back off exponentially with
+     * full jitter, rejoin under the same name, fetch only the messages sent
+     * since the last one we saw, then let a new writer replay the queue.
+     *
+     * @return false if the client was closed while waiting
+     */
+    private boolean reconnect() {
+        closeSocket();
+        Thread oldWriter = writer;
+        if (oldWriter != null) {
+            oldWriter.interrupt();
+            try {
+                oldWriter.join(CLOSE_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        System.out.println("[Reconnect] Connection lost, reconnecting...");
+        if (gui != null) {
+            gui.appendMessage(ChatRecord.text("Connection lost, reconnecting..."));
+        }
 
-            while (totalRead < numBytes) {
-                int bytesRead = input.read(data, totalRead, numBytes - totalRead);
-                if (bytesRead == -1) {
-                    return null;
+        for (int attempt = 0; !closed; attempt++) {
+            long cap = Math.min(RECONNECT_MAX_MS, RECONNECT_BASE_MS << Math.min(attempt, 20));
+            long delay = Math.max(ThreadLocalRandom.current().nextLong(cap + 1), retryAfterMs);
+            retryAfterMs = 0;
+            System.out.println("[Reconnect] Attempt " + (attempt + 1) + " in " + delay + " ms");
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            if (closed) {
+                return false;
+            }
+            try {
+                openSocket();
+                rejoin();
+                startWriter();
+                System.out.println("[Reconnect] Reconnected to " + host + ":" + port);
+                if (gui != null) {
+                    gui.appendMessage(ChatRecord.text("Reconnected"));
                 }
-                totalRead += bytesRead;
+                return true;
+            } catch (IOException e) {
+                System.err.println("[Reconnect] Attempt " + (attempt + 1) + " failed: " + e.getMessage());
+                closeSocket();
             }
+        }
+        return false;
+    }
 
-        return data;
+    /**
+     * Handshake on a fresh connection, written directly so it goes out
+     * ahead of anything queued while we were away.
+     */
+    private void rejoin() throws IOException {
+        // A JOIN or OPTS still queued from before is superseded by this handshake
+        outbox.removeIf(frame -> {
+            boolean handshake = "JOIN".equals(frame.key) || "OPTS".equals(frame.key)
+                || "WHO".equals(frame.key);
+            if (handshake) {
+                frame.sent.complete(null);
+            }
+            return handshake;
+        });
+        if (requestImplicitAck) {
+            optsPending = true;
+            implicitAck = false;
+            writeDirect("OPTS", "implicit-ack".getBytes(StandardCharsets.US_ASCII));
+        }
+        String name = selfId >= 0 && users.name(selfId) != null ? users.name(selfId) : username;
+        writeDirect("JOIN", (name == null ? "" : name).getBytes(StandardCharsets.UTF_8));
+        writeDirect("WHO", new byte[0]);
+        if (lastSeq > 0) {
+            resuming = true;
+            resumeAfter = lastSeq;
+            seenWhileResuming.clear();
+            writeDirect("READ", resumeRequest(resumeAfter));
+        }
+        output.flush();
     }
 
-    public void chatRoom() {
-        Scanner scanner = new Scanner(System.in);
+    private void writeDirect(String key, byte[] value) throws IOException {
+        System.out.println("\n→ Sending: " + key + ":" + value.length);
+        output.write(codec.encode(key, value));
+    }
 
-        Thread listener = new Thread(() -> {
-            try {
-                System.out.println("[Listener] Thread started, waiting for messages...");
-                while (socket != null && !socket.isClosed()) {
-                    KLVMessage message = readKLVFromSocket();
-                    if (message == null) {
-                        System.out.println("[Listener] Connection closed, exiting listener thread");
-                        if (gui != null) {
-                            gui.closeWindow();
-                        }
-                        break;
-                    }
+    private static byte[] resumeRequest(long after) throws IOException {
+        List<KLVExample.KLVMessage> fields = new ArrayList<>();
+        fields.add(new KLVExample.KLVMessage("AFTR", ByteBuffer.allocate(8).putLong(after).array()));
+        fields.add(new KLVExample.KLVMessage("CNT", ByteBuffer.allocate(4).putInt(RESUME_PAGE_SIZE).array()));
+        try {
+            return KLVExample.encodeKLVItems(fields);
+        } catch (Exception e) {
+            throw new IOException("Could not encode resume request", e);
+        }
+    }
 
-                    String respText = new String(message.value, StandardCharsets.UTF_8);
-                    System.out.println("\n← Received: " + message.key + ":" +
-                        message.value.length + ":" + respText);
-
-                    // Handle RESP messages (status codes)
-                    if (message.key.equals("RESP")) {
-                        try {
-                            int statusCode = Integer.parseInt(respText);
-                            if (statusCode == 200) {
-                                System.out.println("[Status] Success (200)");
-                            } else if (statusCode == 400) {
-                                System.err.println("[Status] Bad Request (400) - Message failed");
-                            } else if (statusCode == 403) {
-                                System.err.println("[Status] Forbidden (403) - Operation not allowed");
-                            } else {
-                                System.out.println("[Status] Code: " + statusCode);
-                            }
-                        } catch (NumberFormatException e) {
-                            System.err.println("[Status] Invalid status code: " + respText);
-                        }
-                        System.out.print("> ");
-                        continue;
-                    }
+    private void failQueued(Exception cause) {
+        OutgoingFrame frame;
+        while ((frame = outbox.poll()) != null) {
+            frame.sent.completeExceptionally(cause);
+        }
+    }
 
-                    if (gui != null) {
-                        if (message.key.equals("NAME")) {
-                            String[] parts = respText.split(" has changed their name to ");
-                            if (parts.length == 2) {
-                                String oldName = parts[0];
-                                String newName = parts[1];
-                                gui.updateUserName(oldName, newName);
-                            }
-                        }
 
-                        if (message.key.equals("READ")) {
-                            String[] historyMessages = respText.split("\n");
-                            for (String msg : historyMessages) {
-                                if (!msg.trim().isEmpty()) {
-                                    gui.appendHistoryMessage(msg);
-                                }
-                            }
-                        } else {
-                            gui.appendMessage(respText);
-                        }
-                    }
+    public void chatRoom() {
+        Scanner scanner = new Scanner(System.in);
 
-                    System.out.print("> ");
-                }
-            } catch (Exception e) {
-                System.err.println("\n! Listening error: " + e.getMessage());
-                e.printStackTrace();
-            }
-        });
+        Thread listener = new Thread(this::listen, "client-listener");
         listener.setDaemon(true);
         listener.start();
 
+        // Negotiated first so its RESP is the first one the listener sees
+        if (requestImplicitAck) {
+            optsPending = true;
+            send("OPTS", "implicit-ack");
+        }
+
         if (username == null)
             send("JOIN", "");
         else
             send("JOIN", username);
+        send("WHO", "");
 
         while (true) {
             try {
@@ -195,7 +427,7 @@ public class Client {
                 switch (command) {
                     case "quit":
                         System.out.println("\nSending QUIT command...");
-                        send("QUIT", "");
+                        quit();
                         System.out.println("Disconnecting...");
                         if (gui != null) {
                             gui.closeWindow();
@@ -207,7 +439,7 @@ public class Client {
                             System.out.println("Usage: name <new name>");
                             continue;
                         }
-                        send("NAME", parts[1]);
+                        rename(parts[1]);
                         break;
 
                     case "msg":
@@ -215,7 +447,7 @@ public class Client {
                             System.out.println("Usage: msg <text>");
                             continue;
                         }
-                        send("MSG", parts[1]);
+                        sendMessage(parts[1]);
                         break;
 
                     case "time":
@@ -224,9 +456,42 @@ public class Client {
                     case "read":
                         send("READ", "");
                         break;
+                    case "dm":
+                        String[] dmParts = parts.length < 2 ? new String[0] : parts[1].split("\\s+", 2);
+                        if (dmParts.length < 2) {
+                            System.out.println("Usage: dm <name> <text>");
+                            continue;
+                        }
+                        sendDirect(dmParts[0], dmParts[1]);
+                        break;
+                    case "dms":
+                        if (parts.length < 2) {
+                            System.out.println("Usage: dms <name>");
+                            continue;
+                        }
+                        requestConversation(parts[1]);
+                        break;
+                    case "search":
+                        if (parts.length < 2) {
+                            System.out.println("Usage: search <words>");
+                            continue;
+                        }
+                        search(parts[1], 0);
+                        break;
+                    case "more":
+                        if (!searchMore()) {
+                            System.out.println("Nothing to page: search first");
+                        }
+                        break;
+                    case "who":
+                        System.out.println(online.size() + " online:");
+                        for (int id : online) {
+                            System.out.println("  " + users.name(id));
+                        }
+                        break;
                     default:
                         System.out.println("Unknown command: " + command);
-                        System.out.println("Available: name, msg, time, read, quit");
+                        System.out.println("Available: name, msg, dm, dms, time, read, search, more, who, quit");
                 }
 
             } catch (Exception e) {
@@ -238,7 +503,576 @@ public class Client {
         scanner.close();
     }
 
+    /**
+     * Listener thread: read frames until the connection drops, then
+     * reconnect and carry on. Only a QUIT or close() ends it.
+     */
+    private void listen() {
+        System.out.println("[Listener] Thread started, waiting for messages...");
+        while (true) {
+            try {
+                readFrames();
+                System.out.println("[Listener] Connection closed by server");
+            } catch (Exception e) {
+                if (!closed && !quitting) {
+                    System.err.println("\n! Listening error: " + e.getMessage());
+                }
+            }
+            if (closed || quitting || !reconnect()) {
+                System.out.println("[Listener] Exiting listener thread");
+                if (gui != null) {
+                    gui.closeWindow();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Handle frames until the server closes the connection.
+     */
+    private void readFrames() throws IOException {
+        long lastFrameNanos = System.nanoTime();
+        while (true) {
+            KLVCodec.Header header;
+            try {
+                header = codec.readHeader(input);
+            } catch (SocketTimeoutException e) {
+                // Nothing started arriving; the connection is just quiet,
+                // unless the server should have pinged us by now
+                long idleMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastFrameNanos);
+                if (serverPings && idleMs >= SERVER_IDLE_TIMEOUT_MS) {
+                    throw new IOException("No word from the server for " + idleMs + " ms");
+                }
+                continue;
+            }
+            if (header == null) {
+                return;
+            }
+            lastFrameNanos = System.nanoTime();
+            if (header.key.equals("READ")) {
+                if (header.length > MAX_HISTORY_FRAME) {
+                    throw new IOException("History reply of " + header.length + " bytes is too large");
+                }
+                System.out.println("\n← Received: READ:" + header.length);
+                try {
+                    handleHistory(new KLVStreamReader(input, header.key, header.length));
+                } catch (SocketTimeoutException e) {
+                    throw new IOException("Timed out in the middle of a frame", e);
+                }
+                System.out.print("> ");
+                continue;
+            }
+            byte[] value;
+            try {
+                value = codec.readValue(input, header);
+            } catch (KLVCodec.FrameTooLargeException e) {
+                System.err.println("! " + e.getMessage() + ", skipping it");
+                KLVStreamReader.skipFully(input, e.length);
+                continue;
+            }
+            if (value == null) {
+                return;
+            }
+            handle(new KLVExample.KLVMessage(header.key, value));
+        }
+    }
+
+    private void handle(KLVExample.KLVMessage message) {
+        // Heartbeat from the server; answered quietly
+        if (message.key.equals("PING")) {
+            serverPings = true;
+            send("PONG", new byte[0]);
+            return;
+        }
+        // Ephemeral typing states: FROM items of sender id + 1 (typing) or 0 (stopped)
+        if (message.key.equals("TYPN")) {
+            KLVCursor events = new KLVCursor(message.value);
+            while (events.next()) {
+                if (events.valueLength() < 5) {
+                    continue;
+                }
+                int id = KLVCursor.readInt(events.array(), events.valueOffset());
+                boolean isTyping = events.array()[events.valueOffset() + 4] != 0;
+                if (id != selfId && gui != null) {
+                    gui.typingChanged(id, isTyping);
+                }
+            }
+            return;
+        }
+
+        System.out.println("\n← Received: " + message.key + ":" + message.value.length);
+
+        // Handle RESP messages (status codes), "<code>" or "<code> <request id>"
+        if (message.key.equals("RESP")) {
+            String respText = new String(message.value, StandardCharsets.UTF_8);
+            try {
+                // "<code>[ <request id>][ <key>]": the key names the command a 429 refused
+                String[] respParts = respText.split(" ");
+                int statusCode = Integer.parseInt(respParts[0]);
+                String requestId = null;
+                String refusedKey = null;
+                for (int i = 1; i < respParts.length; i++) {
+                    if (!respParts[i].isEmpty() && Character.isDigit(respParts[i].charAt(0))) {
+                        requestId = respParts[i];
+                    } else {
+                        refusedKey = respParts[i];
+                    }
+                }
+                if (optsPending) {
+                    optsPending = false;
+                    implicitAck = statusCode == 200;
+                    System.out.println("[Status] Implicit acks " +
+                        (implicitAck ? "enabled" : "refused by server"));
+                }
+                if (requestId != null) {
+                    String failed = pendingMessages.remove(Integer.parseInt(requestId));
+                    if (failed != null) {
+                        System.err.println("[Status] Message not delivered: " + failed);
+                    }
+                }
+                if (statusCode == 200) {
+                    System.out.println("[Status] Success (200)");
+                } else if (statusCode == 400) {
+                    System.err.println("[Status] Bad Request (400) - Message failed");
+                } else if (statusCode == 403) {
+                    System.err.println("[Status] Forbidden (403) - Operation not allowed");
+                } else if (statusCode == 404) {
+                    System.err.println("[Status] Not Found (404) - no such user online");
+                } else if (statusCode == 503) {
+                    System.err.println("[Status] Service Unavailable (503) - server is shutting down");
+                } else if (statusCode == 413) {
+                    System.err.println("[Status] Payload Too Large (413) - frame was dropped");
+                } else if (statusCode == 429) {
+                    // Either the shared READ budget or this connection's own
+                    // frame limits; a rejected MSG is reported above by its id.
+                    // Only a refused READ means a history page is not coming.
+                    System.err.println("[Status] Too Many Requests (429"
+                        + (refusedKey != null ? ", " + refusedKey : "") + ") - slow down");
+                    boolean historyRefused = "READ".equals(refusedKey);
+                    if (historyRefused && resuming) {
+                        long delay = 1000 + ThreadLocalRandom.current().nextLong(1000);
+                        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS)
+                            .execute(this::requestResumePage);
+                    } else if (historyRefused && gui != null) {
+                        gui.historyPageFailed();
+                    }
+                } else {
+                    System.out.println("[Status] Code: " + statusCode);
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("[Status] Invalid status code: " + respText);
+            }
+            System.out.print("> ");
+            return;
+        }
+
+        // Our own message echoed back with its request id: that is the ack
+        if (message.key.equals("ACK")) {
+            KLVCursor ack = new KLVCursor(message.value);
+            while (ack.next()) {
+                if (ack.keyIs("RQID")) {
+                    pendingMessages.remove(Integer.parseInt(ack.valueString()));
+                } else if (ack.keyIs("MSG") || ack.keyIs("DM")) {
+                    showRecord(ChatRecord.decode(ack.nested()));
+                }
+            }
+            System.out.print("> ");
+            return;
+        }
+
+        switch (message.key) {
+            case "MSG":
+            case "DM":
+            case "JOIN":
+            case "NAME":
+            case "QUIT":
+                showRecord(ChatRecord.decode(message.value));
+                break;
+
+            case "BUSY":
+                // The server is shedding load and is about to hang up
+                String wait = new String(message.value, StandardCharsets.US_ASCII);
+                try {
+                    retryAfterMs = Long.parseLong(wait.trim());
+                } catch (NumberFormatException e) {
+                    retryAfterMs = RECONNECT_BASE_MS;
+                }
+                System.out.println("[Status] Server busy, retrying in " + retryAfterMs + " ms");
+                if (gui != null) {
+                    gui.appendMessage(ChatRecord.text("Server busy, retrying in "
+                        + (retryAfterMs + 999) / 1000 + " s"));
+                }
+                break;
+
+            case "SHUT":
+                // The server is draining before it stops; it hangs up next
+                String delay = new String(message.value, StandardCharsets.US_ASCII);
+                try {
+                    retryAfterMs = Long.parseLong(delay.trim());
+                } catch (NumberFormatException e) {
+                    retryAfterMs = RECONNECT_BASE_MS;
+                }
+                System.out.println("[Status] Server shutting down, reconnecting in " + retryAfterMs + " ms");
+                if (gui != null) {
+                    gui.appendMessage(ChatRecord.text("Server restarting, reconnecting in "
+                        + (retryAfterMs + 999) / 1000 + " s"));
+                }
+                break;
+
+            case "SRCH":
+                showSearchResults(new KLVCursor(message.value));
+                break;
+
+            case "WHO":
+            case "PRES":
+                updatePresence(message.key.equals("WHO"), new KLVCursor(message.value));
+                break;
+
+            case "NAMS":
+                KLVCursor entries = new KLVCursor(message.value);
+                while (entries.next()) {
+                    if (entries.keyIs("USER")) {
+                        users.putEntry(entries, true);
+                    } else if (entries.keyIs("SELF")) {
+                        selfId = entries.valueInt();
+                    } else if (entries.keyIs("EPOC")) {
+                        long epoch = entries.valueLong();
+                        if (serverEpoch != 0 && epoch != serverEpoch) {
+                            serverRestarted();
+                        }
+                        serverEpoch = epoch;
+                    }
+                }
+                break;
+
+            default:
+                String text = new String(message.value, StandardCharsets.UTF_8);
+                System.out.println(text);
+                if (gui != null) {
+                    gui.appendMessage(ChatRecord.text(text));
+                }
+        }
+
+        System.out.print("> ");
+    }
+
+    /**
+     * Read a READ reply straight off the socket. Only the current item is
+     * held in memory; anything over the per-item bound is skipped.
+     */
+    private void handleHistory(KLVStreamReader history) throws IOException {
+        List<ChatRecord> records = new ArrayList<>();
+        String pageKey = null;
+        long pageSeq = 0;
+        while (history.next()) {
+            if (history.valueLength() > MAX_HISTORY_ITEM) {
+                System.err.println("! Skipping history item of " + history.valueLength() + " bytes");
+                continue;
+            }
+            if (history.key().equals("WITH") || history.key().equals("WNAM")) {
+                // Direct messages with one user; shown like a plain READ
+                continue;
+            }
+            if (history.key().equals("BFOR") || history.key().equals("AFTR")) {
+                // Reply to requestHistoryPage rather than a plain READ
+                pageKey = history.key();
+                pageSeq = ByteBuffer.wrap(history.readValue()).getLong();
+            } else if (history.key().equals("USER")) {
+                // Names as of the message; never override a live name
+                users.putEntry(history.readValue(), false);
+            } else {
+                records.add(ChatRecord.decode(history.readValue()));
+            }
+        }
+        if ("AFTR".equals(pageKey) && resuming) {
+            // A page asked for before we knew the server had restarted is
+            // numbered by the old run; the resume has started over since
+            if (pageSeq == resumeAfter) {
+                resumeReceived(records);
+            }
+            return;
+        }
+        if (pageKey != null) {
+            if (gui != null) {
+                gui.historyPageReceived(pageKey.equals("BFOR"), records);
+            }
+            return;
+        }
+        for (ChatRecord record : records) {
+            System.out.println("  " + record.describe(users));
+            if (gui != null) {
+                gui.appendHistoryMessage(record);
+            }
+        }
+        if (records.isEmpty()) {
+            System.out.println("No message history available.");
+            if (gui != null) {
+                gui.appendHistoryMessage(ChatRecord.text("No message history available."));
+            }
+        }
+    }
+
+    /**
+     * Search room history; results come back best match first as a SRCH
+     * frame, a page at a time.
+     *
+     * @param offset how many results to skip, for later pages
+     */
+    public void search(String query, int offset) {
+        try {
+            List<KLVExample.KLVMessage> fields = new ArrayList<>();
+            fields.add(new KLVExample.KLVMessage("QURY", query.getBytes(StandardCharsets.UTF_8)));
+            fields.add(new KLVExample.KLVMessage("OFFS", ByteBuffer.allocate(4).putInt(offset).array()));
+            fields.add(new KLVExample.KLVMessage("CNT", ByteBuffer.allocate(4).putInt(SEARCH_PAGE).array()));
+            lastQuery = query;
+            System.out.println("\n→ Sending: SRCH " + query + (offset > 0 ? " from " + offset : ""));
+            send("SRCH", KLVExample.encodeKLVItems(fields));
+        } catch (Exception e) {
+            System.err.println("! Error sending: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ask for the page after the last search results shown.
+     *
+     * @return false if nothing has been searched for yet
+     */
+    public boolean searchMore() {
+        String query = lastQuery;
+        if (query == null) {
+            return false;
+        }
+        search(query, nextSearchOffset);
+        return true;
+    }
+
+    private void showSearchResults(KLVCursor results) {
+        String query = "";
+        int offset = 0;
+        int total = 0;
+        List<ChatRecord> records = new ArrayList<>();
+        while (results.next()) {
+            if (results.keyIs("QURY")) {
+                query = results.valueString();
+            } else if (results.keyIs("OFFS")) {
+                offset = results.valueInt();
+            } else if (results.keyIs("TOTL")) {
+                total = results.valueInt();
+            } else if (results.keyIs("USER")) {
+                users.putEntry(results, false);
+            } else if (results.keyIs("MSG")) {
+                records.add(ChatRecord.decode(results.nested()));
+            }
+        }
+        nextSearchOffset = offset + records.size();
+
+        List<String> lines = new ArrayList<>(records.size() + 1);
+        lines.add(records.isEmpty()
+            ? "No results for \"" + query + "\""
+            : "Results " + (offset + 1) + "-" + nextSearchOffset + " of " + total + " for \"" + query + "\""
+                + (nextSearchOffset < total ? " (\"more\" or /more for the next page)" : ""));
+        for (ChatRecord record : records) {
+            lines.add("  " + record.describe(users));
+        }
+        for (String line : lines) {
+            System.out.println(line);
+            if (gui != null) {
+                gui.appendMessage(ChatRecord.text(line));
+            }
+        }
+    }
+
+    /**
+     * Send a private message to one user, by name. The server routes it to
+     * that user's connection only; "404" comes back if they are not online.
+     */
+    public CompletableFuture<Void> sendDirect(String to, String text) {
+        try {
+            List<KLVExample.KLVMessage> fields = new ArrayList<>();
+            fields.add(new KLVExample.KLVMessage("TONM", to.getBytes(StandardCharsets.UTF_8)));
+            fields.add(new KLVExample.KLVMessage("BODY", text.getBytes(StandardCharsets.UTF_8)));
+            if (implicitAck) {
+                int requestId = nextRequestId.incrementAndGet();
+                fields.add(new KLVExample.KLVMessage("RQID",
+                    String.valueOf(requestId).getBytes(StandardCharsets.US_ASCII)));
+                pendingMessages.put(requestId, "(to " + to + ") " + text);
+            }
+            System.out.println("\n→ Sending: DM to " + to + ":" + text);
+            return send("DM", KLVExample.encodeKLVItems(fields));
+        } catch (Exception e) {
+            System.err.println("! Error sending: " + e.getMessage());
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Ask for the direct messages exchanged with a user, by name. The
+     * server keeps them by name, so this works across reconnects and
+     * while the other user is offline.
+     */
+    public void requestConversation(String name) {
+        List<KLVExample.KLVMessage> fields = new ArrayList<>();
+        fields.add(new KLVExample.KLVMessage("WNAM", name.getBytes(StandardCharsets.UTF_8)));
+        try {
+            send("READ", KLVExample.encodeKLVItems(fields));
+        } catch (Exception e) {
+            System.err.println("! Error sending: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Tell the room whether we are typing. Called on every edit; only state
+     * changes and a periodic refresh while typing go out.
+     */
+    public synchronized void typing(boolean isTyping) {
+        long now = System.currentTimeMillis();
+        if (isTyping && (!typingShown || now - typingSentAt >= TYPING_REFRESH_MS)) {
+            typingShown = true;
+            typingSentAt = now;
+            send("TYPN", new byte[] {1});
+        } else if (!isTyping && typingShown) {
+            typingShown = false;
+            send("TYPN", new byte[] {0});
+        }
+    }
+
+    /**
+     * Apply a WHO snapshot (replacing what we had) or a PRES diff.
+     */
+    private void updatePresence(boolean snapshot, KLVCursor items) {
+        if (snapshot) {
+            online.clear();
+        }
+        while (items.next()) {
+            int id = KLVCursor.readInt(items.array(), items.valueOffset());
+            if (items.keyIs("DEL")) {
+                online.remove(id);
+            } else {
+                // USER, ADD and REN all carry the current name
+                users.putEntry(items, true);
+                online.add(id);
+            }
+        }
+        System.out.println("[Presence] " + online.size() + " online");
+        if (gui != null) {
+            gui.setOnlineCount(online.size());
+        }
+    }
+
+    /**
+     * Fetch one page of history next to a known message.
+     *
+     * @param older true for messages before seq, false for messages after it
+     */
+    public void requestHistoryPage(boolean older, long seq, int count) {
+        try {
+            List<KLVExample.KLVMessage> fields = new ArrayList<>();
+            fields.add(new KLVExample.KLVMessage(older ? "BFOR" : "AFTR",
+                ByteBuffer.allocate(8).putLong(seq).array()));
+            fields.add(new KLVExample.KLVMessage("CNT", ByteBuffer.allocate(4).putInt(count).array()));
+            System.out.println("\n→ Sending: READ " + (older ? "before " : "after ") + seq);
+            send("READ", KLVExample.encodeKLVItems(fields));
+        } catch (Exception e) {
+            System.err.println("! Error sending: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A page of messages missed while disconnected. They are shown like live
+     * ones, skipping any that already arrived live since rejoining, and the
+     * next page is asked for until the server runs out.
+     */
+    private void resumeReceived(List<ChatRecord> records) {
+        for (ChatRecord record : records) {
+            if (!seenWhileResuming.contains(record.seq)) {
+                showRecord(record);
+            }
+        }
+        if (records.size() < RESUME_PAGE_SIZE) {
+            resuming = false;
+            seenWhileResuming.clear();
+            System.out.println("[Reconnect] Caught up");
+            return;
+        }
+        resumeAfter = records.get(records.size() - 1).seq;
+        requestResumePage();
+    }
+
+    /**
+     * NAMS came from a different server run than the seqs we have seen. Its
+     * seqs start again at 1, so everything it has is new to us: resume from
+     * the start, dropping any request made against the old numbering.
+     */
+    private void serverRestarted() {
+        System.out.println("[Reconnect] Server restarted; earlier messages are gone");
+        lastSeq = 0;
+        seenWhileResuming.clear();
+        // Ids are handed out afresh too; the USER items after EPOC refill this
+        users.clear();
+        if (gui != null) {
+            gui.serverRestarted();
+        }
+        if (resuming) {
+            resumeAfter = 0;
+            requestResumePage();
+        }
+    }
+
+    private void requestResumePage() {
+        try {
+            send("READ", resumeRequest(resumeAfter));
+        } catch (IOException e) {
+            resuming = false;
+        }
+    }
+
+    private void showRecord(ChatRecord record) {
+        if (record.seq > 0) {
+            if (resuming) {
+                seenWhileResuming.add(record.seq);
+            }
+            lastSeq = Math.max(lastSeq, record.seq);
+        }
+        // JOIN and NAME are the only events that carry a name
+        if (record.senderName != null) {
+            users.put(record.senderId, record.senderName);
+        }
+        System.out.println(record.describe(users));
+        if (gui != null) {
+            gui.appendMessage(record);
+        }
+    }
+
+    /**
+     * Stop the writer once it has flushed what is already queued (bounded
+     * by CLOSE_TIMEOUT_MS), then close the socket.
+     */
     public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Thread current = writer;
+        if (current != null && outbox.offer(OutgoingFrame.CLOSE)) {
+            try {
+                current.join(CLOSE_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (current != null) {
+            current.interrupt();
+        }
+        closeSocket();
+        failQueued(new IOException("Connection closed"));
+    }
+
+    private void closeSocket() {
+        closeSocket(socket);
+    }
+
+    private static void closeSocket(Socket socket) {
         try {
             if (socket != null && !socket.isClosed()) {
                 socket.close();
@@ -258,13 +1092,20 @@ public class Client {
         return sb.toString();
     }
 
-    static class KLVMessage {
-        String key;
-        byte[] value;
+    /**
+     * An encoded frame waiting for the writer thread.
+     */
+    static class OutgoingFrame {
+        // Marks the end of the queue on close
+        static final OutgoingFrame CLOSE = new OutgoingFrame(null, new byte[0]);
+
+        final String key;
+        final byte[] bytes;
+        final CompletableFuture<Void> sent = new CompletableFuture<>();
 
-        KLVMessage(String key, byte[] value) {
+        OutgoingFrame(String key, byte[] bytes) {
             this.key = key;
-            this.value = value;
+            this.bytes = bytes;
         }
     }
 
@@ -298,7 +1139,11 @@ public class Client {
         }
 
         Client client = new Client(host, port);
-        
+        if (Boolean.getBoolean("chat.compact")) {
+            client.setFraming(KLVCodec.Framing.COMPACT);
+        }
+        client.setImplicitAck(Boolean.getBoolean("chat.implicitAck"));
+
         ClientGui gui = new ClientGui(host, port);
         client.setGui(gui);
         gui.setClient(client);
@@ -1,43 +1,75 @@
 import java.awt.*;
 import javax.swing.*;
-import java.awt.geom.Ellipse2D;
-import java.util.HashMap;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 public class ClientGui extends JFrame {
     boolean dark = false;
-    private JPanel messagePanel;
-    private ImageIcon[] pfps = new ImageIcon[6];
-    private Map<String, Integer> userPfpMap = new HashMap<>();
+    private MessageListView messageList;
+
+    // Rows pushed by the listener thread, appended to the list in one EDT
+    // pass per frame instead of one invokeLater per message
+    private static final int DRAIN_INTERVAL_MS = 16;
+    private final Queue<MessageListView.Row> pendingRows = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final Timer drainTimer = new Timer(DRAIN_INTERVAL_MS, e -> drainPendingRows());
+    // Queued by serverRestarted; everything shown before it goes when it is drained
+    private volatile MessageListView.Row restartNotice;
+
+    // Bounded scrollback; evicted messages are paged back in from the server
+    private static final int SCROLLBACK_LIMIT = Integer.getInteger("chat.scrollback", 2000);
+    private static final int PAGE_SIZE = 50;
+    private JScrollPane scroll;
+    private boolean pageRequested = false;
+    // firstSeq for which the server had nothing older; changes when rows are evicted
+    private long olderExhaustedAt = -1;
+    private AvatarCache avatars;
+    private JLabel onlineLabel;
+
+    // Who is typing, by user id, until when (EDT only). A sender refreshes
+    // every few seconds while typing, so an entry that is not refreshed has
+    // gone away without a stop, e.g. by disconnecting.
+    private static final long TYPING_TTL_MS = 5000;
+    private final Map<Integer, Long> typingUntil = new LinkedHashMap<>();
+    private final Timer typingExpiry = new Timer(1000, e -> expireTyping());
+    private JLabel typingLabel;
     private Client client;
 
     public ClientGui(String host, int port) {
         super("ClientGui");
         
-        pfps[0] = loadAndScaleIcon("cats/cat1.png", 24);
-        pfps[1] = loadAndScaleIcon("cats/cat2.png", 24);
-        pfps[2] = loadAndScaleIcon("cats/cat3.png", 24);
-        pfps[3] = loadAndScaleIcon("cats/cat4.png", 24);
-        pfps[4] = loadAndScaleIcon("cats/cat5.png", 24);
-        pfps[5] = loadAndScaleIcon("cats/cat6.png", 24);
+        avatars = new AvatarCache("cats/cat1.png", "cats/cat2.png", "cats/cat3.png",
+                "cats/cat4.png", "cats/cat5.png", "cats/cat6.png");
 
         JPanel main = new JPanel(new BorderLayout());
-        main.setBackground(new Color(245, 246, 250));
+        main.setBackground(ChatTheme.LIGHT.windowBackground);
         main.setBorder(BorderFactory.createLineBorder(Color.DARK_GRAY, 3, true));
         setContentPane(main);
 
         JPanel header = new JPanel(new BorderLayout());
         header.setPreferredSize(new Dimension(370, 50));
-        header.setBackground(new Color(52, 73, 94));
+        header.setBackground(ChatTheme.LIGHT.headerBackground);
 
         JLabel title = new JLabel("Chatroom");
         title.setForeground(Color.WHITE);
         title.setFont(new Font("SansSerif", Font.BOLD, 18));
         
+        onlineLabel = new JLabel();
+        onlineLabel.setForeground(Color.WHITE);
+        onlineLabel.setFont(new Font("SansSerif", Font.PLAIN, 12));
+
         JPanel leftHeader = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 10));
         leftHeader.setOpaque(false);
         leftHeader.add(title);
+        leftHeader.add(onlineLabel);
 
         JButton pfpButton = new JButton("Pfps");
         pfpButton.setForeground(Color.WHITE);
@@ -49,9 +81,9 @@ public class ClientGui extends JFrame {
         pfpButton.setFocusPainted(false);
         
         pfpButton.addActionListener(e -> {
-            Object[] options = new Object[pfps.length];
-            for (int i = 0; i < pfps.length; i++) {
-                options[i] = pfps[i];
+            Object[] options = new Object[avatars.count()];
+            for (int i = 0; i < options.length; i++) {
+                options[i] = avatars.icon(i, 24);
             }
             
             JOptionPane.showOptionDialog(
@@ -71,13 +103,19 @@ public class ClientGui extends JFrame {
 
         main.add(header, BorderLayout.NORTH);
 
-        messagePanel = new JPanel();
-        messagePanel.setLayout(new BoxLayout(messagePanel, BoxLayout.Y_AXIS));
-        messagePanel.setBackground(new Color(245, 246, 250));
+        drainTimer.setRepeats(false);
+
+        messageList = new MessageListView(avatars);
+        messageList.setScrollbackLimit(SCROLLBACK_LIMIT);
 
-        JScrollPane scroll = new JScrollPane(messagePanel);
+        scroll = new JScrollPane(messageList);
         scroll.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         scroll.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
+        scroll.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (!e.getValueIsAdjusting()) {
+                checkPaging();
+            }
+        });
 
         main.add(scroll, BorderLayout.CENTER);
 
@@ -86,7 +124,36 @@ public class ClientGui extends JFrame {
         bottom.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         bottom.setBackground(main.getBackground());
 
+        typingLabel = new JLabel(" ");
+        typingLabel.setFont(new Font("SansSerif", Font.ITALIC, 11));
+        typingLabel.setForeground(Color.GRAY);
+        typingLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        bottom.add(typingLabel);
+        bottom.add(Box.createVerticalStrut(4));
+
         JTextField input = new JTextField();
+        input.setAlignmentX(Component.LEFT_ALIGNMENT);
+        input.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                typingChangedLocally();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                typingChangedLocally();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+
+            private void typingChangedLocally() {
+                if (client != null) {
+                    client.typing(!input.getText().trim().isEmpty());
+                }
+            }
+        });
         bottom.add(input);
         bottom.add(Box.createVerticalStrut(16));
 
@@ -110,13 +177,14 @@ public class ClientGui extends JFrame {
         buttons.add(nameButton);
         buttons.add(exitButton);
         buttons.add(darkModeButton);
+        buttons.setAlignmentX(Component.LEFT_ALIGNMENT);
         bottom.add(buttons);
         main.add(bottom, BorderLayout.SOUTH);
 
         sendButton.addActionListener(e -> {
             String text = input.getText().trim();
             if (!text.isEmpty() && client != null) {
-                client.send("MSG", text);
+                sendText(text);
                 input.setText("");
             }
         });
@@ -124,7 +192,7 @@ public class ClientGui extends JFrame {
         input.addActionListener(e -> {
             String text = input.getText().trim();
             if (!text.isEmpty() && client != null) {
-                client.send("MSG", text);
+                sendText(text);
                 input.setText("");
             }
         });
@@ -139,76 +207,41 @@ public class ClientGui extends JFrame {
             if (client != null) {
                 String newName = JOptionPane.showInputDialog(this, "Enter new name:", "Change Name", JOptionPane.PLAIN_MESSAGE);
                 if (newName != null && !newName.trim().isEmpty()) {
-                    client.send("NAME", newName.trim());
+                    client.rename(newName.trim());
                 }
             }
         });
 
         exitButton.addActionListener(e -> {
             if (client != null) {
-                client.send("QUIT", "");
+                client.quit();
             }
             dispose();
         });
 
+        // Message rows read the theme when they paint; only the fixed set of
+        // chrome widgets around the list holds colours of its own
+        Runnable applyChrome = () -> {
+            ChatTheme theme = ChatTheme.current();
+            main.setBackground(theme.windowBackground);
+            header.setBackground(theme.headerBackground);
+            pfpButton.setBackground(theme.headerBackground);
+            input.setBackground(theme.inputBackground);
+            input.setForeground(theme.inputForeground);
+            input.setBorder(theme.dark ? BorderFactory.createLineBorder(Color.BLACK, 1)
+                    : UIManager.getBorder("TextField.border"));
+            bottom.setBackground(theme.windowBackground);
+            buttons.setBackground(theme.windowBackground);
+            scroll.setBackground(theme.viewportBackground);
+            scroll.getViewport().setBackground(theme.viewportBackground);
+            darkModeButton.setText(theme.dark ? "Light Mode" : "Dark Mode");
+        };
+
         darkModeButton.addActionListener(e -> {
-            if (dark == false) {
-                main.setBackground(Color.DARK_GRAY);
-                header.setBackground(Color.DARK_GRAY);
-                messagePanel.setBackground(Color.GRAY);
-                input.setBackground(Color.GRAY);
-                input.setForeground(Color.WHITE);
-
-                sendButton.setForeground(Color.BLACK);
-                readButton.setForeground(Color.BLACK);
-                nameButton.setForeground(Color.BLACK);
-                exitButton.setForeground(Color.BLACK);
-                darkModeButton.setForeground(Color.BLACK);
-                
-                pfpButton.setBackground(header.getBackground());
-                pfpButton.setForeground(Color.WHITE);
-
-                bottom.setBackground(Color.DARK_GRAY);
-                buttons.setBackground(Color.DARK_GRAY);
-                scroll.setBackground(Color.GRAY);
-                scroll.getViewport().setBackground(Color.GRAY);
-                input.setBorder(BorderFactory.createLineBorder(Color.BLACK, 1));
-
-                darkModeButton.setText("Light Mode");
-                dark = true;
-                
-                updateMessageContainersBackground();
-                updateUsernameLabelsColor(Color.WHITE);
-            }
-            else {
-                main.setBackground(new Color(245,246,250));
-                header.setBackground(new Color(52,73,94));
-                messagePanel.setBackground(new Color(245,246,250));
-                input.setBackground(Color.WHITE);
-                input.setForeground(Color.BLACK);
-
-                sendButton.setForeground(Color.BLACK);
-                readButton.setForeground(Color.BLACK);
-                nameButton.setForeground(Color.BLACK);
-                exitButton.setForeground(Color.BLACK);
-                darkModeButton.setForeground(Color.BLACK);
-                
-                pfpButton.setBackground(header.getBackground());
-                pfpButton.setForeground(Color.WHITE);
-
-                bottom.setBackground(new Color(245,246,250));
-                buttons.setBackground(new Color(245,246,250));
-                scroll.setBackground(Color.WHITE);
-                scroll.getViewport().setBackground(Color.WHITE);
-
-                input.setBorder(UIManager.getBorder("TextField.border"));
-
-                darkModeButton.setText("Dark Mode");
-                dark = false;
-                
-                updateMessageContainersBackground();
-                updateUsernameLabelsColor(Color.GRAY);
-            }
+            dark = !dark;
+            ChatTheme.setCurrent(dark ? ChatTheme.DARK : ChatTheme.LIGHT);
+            applyChrome.run();
+            repaint();
         });
 
         setSize(370, 670);
@@ -219,211 +252,219 @@ public class ClientGui extends JFrame {
     }
 
 
-    public void addLabel(String text) {
-        SwingUtilities.invokeLater(() -> {
-            String username = null;
-            String messageText = text;
-            boolean isJoinMessage = text.endsWith(" joined");
-            boolean isNameChangeMessage = text.contains(" has changed their name to ");
-            boolean isLeaveMessage = text.endsWith(" has left :(");
-
-            if (text.contains(":\t")) {
-                int separatorIndex = text.indexOf(":\t");
-                username = text.substring(0, separatorIndex);
-                messageText = text.substring(separatorIndex + 2);
+    /**
+     * Hand a message to the client's writer thread. Nothing here waits on
+     * the socket; a failed send comes back as a note in the list.
+     */
+    private void sendText(String text) {
+        // "/dm name text" sends a private message instead
+        if (text.startsWith("/dm ")) {
+            String[] parts = text.substring(4).trim().split("\\s+", 2);
+            if (parts.length < 2) {
+                addLabel(ChatRecord.text("Usage: /dm name message"));
+                return;
             }
-
-            messagePanel.add(Box.createVerticalStrut(10));
-
-            JPanel messageContainer = new JPanel();
-            messageContainer.setLayout(new BoxLayout(messageContainer, BoxLayout.X_AXIS));
-            messageContainer.setBackground(messagePanel.getBackground());
-            messageContainer.setAlignmentX(Component.LEFT_ALIGNMENT);
-            
-            if (!isJoinMessage && !isNameChangeMessage && !isLeaveMessage) {
-                RoundImageLabel profilePic = new RoundImageLabel(30);
-                profilePic.setPreferredSize(new Dimension(30, 30));
-                profilePic.setMaximumSize(new Dimension(30, 30));
-                profilePic.setMinimumSize(new Dimension(30, 30));
-                int pfpIndex = getPfpIndexForUser(username);
-                if (pfps[pfpIndex] != null) {
-                    profilePic.setImage(pfps[pfpIndex].getImage());
+            client.sendDirect(parts[0], parts[1]).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    addLabel(ChatRecord.text("Not sent: " + text));
                 }
-                messageContainer.add(profilePic);
-                messageContainer.add(Box.createHorizontalStrut(8));
-            }
-            
-            JPanel textContainer = new JPanel();
-            textContainer.setLayout(new BoxLayout(textContainer, BoxLayout.Y_AXIS));
-            textContainer.setBackground(messagePanel.getBackground());
-            textContainer.setAlignmentX(Component.LEFT_ALIGNMENT);
-            
-            JLabel usernameLabel = new JLabel(username != null ? username : "");
-            usernameLabel.setFont(new Font(usernameLabel.getFont().getName(), Font.PLAIN, 10));
-            usernameLabel.setForeground(dark ? Color.WHITE : Color.BLACK);
-            usernameLabel.setBackground(messagePanel.getBackground());
-            usernameLabel.setOpaque(false);
-            usernameLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
-            textContainer.add(usernameLabel);
-
-            RoundedLabel label = new RoundedLabel(messageText, 20);
-            label.setBackground(new Color(230, 230, 230));
-            label.setAlignmentX(Component.LEFT_ALIGNMENT);
-            textContainer.add(label);
-            
-            messageContainer.add(textContainer);
-            messagePanel.add(messageContainer);
-            
-            messagePanel.revalidate();
-            Dimension prefSize = messageContainer.getPreferredSize();
-            messageContainer.setMaximumSize(new Dimension(Integer.MAX_VALUE, prefSize.height));
-            Dimension textPrefSize = textContainer.getPreferredSize();
-            textContainer.setMaximumSize(new Dimension(Integer.MAX_VALUE, textPrefSize.height));
-            
-            messagePanel.revalidate();
-            messagePanel.repaint();
-
-            JScrollPane scrollPane = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, messagePanel);
-            if (scrollPane != null) {
-                JScrollBar vertical = scrollPane.getVerticalScrollBar();
-                vertical.setValue(vertical.getMaximum());
+            });
+            return;
+        }
+        // "/search words" lists matching history; "/more" pages on
+        if (text.startsWith("/search ")) {
+            client.search(text.substring(8).trim(), 0);
+            return;
+        }
+        if (text.equals("/more")) {
+            client.searchMore();
+            return;
+        }
+        client.sendMessage(text).whenComplete((ignored, error) -> {
+            if (error != null) {
+                addLabel(ChatRecord.text("Not sent: " + text));
             }
         });
     }
 
-    private void updateMessageContainersBackground() {
-        for (Component comp : messagePanel.getComponents()) {
-            if (comp instanceof JPanel) {
-                JPanel panel = (JPanel) comp;
-                panel.setBackground(messagePanel.getBackground());
-                updateContainerBackgrounds(panel);
-            }
+    public void addLabel(ChatRecord record) {
+        enqueueRow(new MessageListView.Row(record, false));
+    }
+
+    /**
+     * Queue a row from any thread. The row's text is wrapped here, on the
+     * caller's thread, so the EDT only places it. The first row after a
+     * drain arms the timer; everything arriving before it fires joins the
+     * same batch.
+     */
+    private void enqueueRow(MessageListView.Row row) {
+        messageList.prepare(row);
+        pendingRows.offer(row);
+        if (drainScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(drainTimer::restart);
         }
-        messagePanel.revalidate();
-        messagePanel.repaint();
     }
-    
-    private void updateContainerBackgrounds(JPanel container) {
-        for (Component comp : container.getComponents()) {
-            if (comp instanceof JPanel) {
-                JPanel panel = (JPanel) comp;
-                panel.setBackground(messagePanel.getBackground());
-                updateContainerBackgrounds(panel);
-            }
+
+    private void drainPendingRows() {
+        // Cleared before polling so rows offered mid-drain arm a new timer
+        drainScheduled.set(false);
+        List<MessageListView.Row> batch = new ArrayList<>();
+        MessageListView.Row row;
+        while ((row = pendingRows.poll()) != null) {
+            batch.add(row);
+        }
+        int restart = batch.lastIndexOf(restartNotice);
+        if (restart >= 0) {
+            batch.subList(0, restart).clear();
+            messageList.clear();
+            pageRequested = false;
+            olderExhaustedAt = -1;
         }
+        // While the newest rows are evicted, live room messages would land
+        // after a gap; they are fetched again as a page once the user scrolls
+        // back down. Local notices and DMs are not in that history, so they
+        // are always appended.
+        if (messageList.isNewerEvicted()) {
+            batch.removeIf(MessageListView.Row::isRoomHistory);
+        }
+        messageList.appendAll(batch);
     }
-    
-    private void updateUsernameLabelsColor(Color color) {
-        for (Component comp : messagePanel.getComponents()) {
-            if (comp instanceof JPanel) {
-                updateUsernameLabelsInContainer((JPanel) comp, color);
+
+    /**
+     * Page history in when the user reaches either end of the list.
+     */
+    private void checkPaging() {
+        if (client == null || pageRequested || messageList.getRowCount() == 0) {
+            return;
+        }
+        JScrollBar bar = scroll.getVerticalScrollBar();
+        boolean scrollable = bar.getMaximum() > bar.getVisibleAmount();
+        if (scrollable && bar.getValue() == 0) {
+            long first = messageList.firstSeq();
+            if (first > 1 && first != olderExhaustedAt) {
+                pageRequested = true;
+                client.requestHistoryPage(true, first, PAGE_SIZE);
             }
+        } else if (bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum()
+                && messageList.isNewerEvicted()) {
+            pageRequested = true;
+            client.requestHistoryPage(false, messageList.lastSeq(), PAGE_SIZE);
         }
-        messagePanel.repaint();
     }
-    
-    private void updateUsernameLabelsInContainer(JPanel container, Color color) {
-        for (Component comp : container.getComponents()) {
-            if (comp instanceof JLabel && !(comp instanceof RoundedLabel)) {
-                ((JLabel) comp).setForeground(color);
-            } else if (comp instanceof JPanel) {
-                updateUsernameLabelsInContainer((JPanel) comp, color);
-            }
+
+    /**
+     * A page asked for by {@link #checkPaging()} arrived.
+     */
+    public void historyPageReceived(boolean older, List<ChatRecord> records) {
+        List<MessageListView.Row> page = new ArrayList<>(records.size());
+        for (ChatRecord record : records) {
+            MessageListView.Row row = new MessageListView.Row(record, true);
+            messageList.prepare(row);
+            page.add(row);
         }
+        SwingUtilities.invokeLater(() -> {
+            drainPendingRows();
+            pageRequested = false;
+            if (older) {
+                // A short page means the server has nothing older left
+                messageList.prependAll(page);
+                if (records.size() < PAGE_SIZE) {
+                    olderExhaustedAt = messageList.firstSeq();
+                }
+            } else {
+                long last = messageList.lastSeq();
+                page.removeIf(r -> r.record.seq <= last);
+                if (records.size() < PAGE_SIZE) {
+                    messageList.setNewerEvicted(false);
+                }
+                messageList.appendAll(page);
+            }
+        });
     }
-    
-    private int getPfpIndexForUser(String username) {
-        if (username == null || username.isEmpty()) {
-            return 0;
+
+    /**
+     * The server restarted and numbers its messages from 1 again, so what is
+     * shown cannot be paged against any more. Cleared in queue order, so
+     * rows from before the restart go and rows from after it stay.
+     */
+    public void serverRestarted() {
+        MessageListView.Row notice = new MessageListView.Row(
+            ChatRecord.text("Server restarted; earlier messages are gone"), false);
+        restartNotice = notice;
+        enqueueRow(notice);
+    }
+
+    /**
+     * The server turned a history request away because it is rate limited.
+     * Paging is asked for again the next time the user reaches an end.
+     */
+    public void historyPageFailed() {
+        SwingUtilities.invokeLater(() -> pageRequested = false);
+    }
+
+    /**
+     * Show how many users are online, from the client's presence table.
+     */
+    public void setOnlineCount(int count) {
+        SwingUtilities.invokeLater(() -> onlineLabel.setText(count + " online"));
+    }
+
+    /**
+     * Another user started or stopped typing. Shown under the list, never
+     * as a message row.
+     */
+    public void typingChanged(int userId, boolean isTyping) {
+        SwingUtilities.invokeLater(() -> {
+            if (isTyping) {
+                typingUntil.put(userId, System.currentTimeMillis() + TYPING_TTL_MS);
+                typingExpiry.start();
+            } else {
+                typingUntil.remove(userId);
+            }
+            updateTypingLabel();
+        });
+    }
+
+    private void expireTyping() {
+        long now = System.currentTimeMillis();
+        if (typingUntil.values().removeIf(until -> until <= now)) {
+            updateTypingLabel();
         }
-        if (!userPfpMap.containsKey(username)) {
-            int hash = username.hashCode();
-            int assignedIndex = Math.abs(hash) % pfps.length;
-            userPfpMap.put(username, assignedIndex);
+        if (typingUntil.isEmpty()) {
+            typingExpiry.stop();
         }
-        return userPfpMap.get(username);
     }
-    
-    public void updateUserName(String oldName, String newName) {
-        if (oldName != null && !oldName.isEmpty() && userPfpMap.containsKey(oldName)) {
-            int pfpIndex = userPfpMap.remove(oldName);
-            userPfpMap.put(newName, pfpIndex);
+
+    private void updateTypingLabel() {
+        List<String> names = new ArrayList<>();
+        for (int id : typingUntil.keySet()) {
+            String name = client != null ? client.users().name(id) : null;
+            names.add(name != null ? name : "Someone");
+        }
+        String text;
+        if (names.isEmpty()) {
+            text = " ";
+        } else if (names.size() == 1) {
+            text = names.get(0) + " is typing...";
+        } else if (names.size() == 2) {
+            text = names.get(0) + " and " + names.get(1) + " are typing...";
+        } else {
+            text = names.size() + " people are typing...";
         }
+        typingLabel.setText(text);
     }
-    
-    public void appendMessage(String message) {
-        addLabel(message);
+
+    public void appendMessage(ChatRecord record) {
+        addLabel(record);
     }
     
-    public void appendHistoryMessage(String text) {
-        SwingUtilities.invokeLater(() -> {
-            String username = null;
-            String messageText = text;
-            
-            if (text.contains(":\t")) {
-                int separatorIndex = text.indexOf(":\t");
-                username = text.substring(0, separatorIndex);
-                messageText = text.substring(separatorIndex + 2);
-            }
-            
-            messagePanel.add(Box.createVerticalStrut(10));
-            
-            JPanel messageContainer = new JPanel();
-            messageContainer.setLayout(new BoxLayout(messageContainer, BoxLayout.X_AXIS));
-            messageContainer.setBackground(messagePanel.getBackground());
-            messageContainer.setAlignmentX(Component.LEFT_ALIGNMENT);
-            
-            RoundImageLabel profilePic = new RoundImageLabel(30);
-            profilePic.setPreferredSize(new Dimension(30, 30));
-            profilePic.setMaximumSize(new Dimension(30, 30));
-            profilePic.setMinimumSize(new Dimension(30, 30));
-            int pfpIndex = getPfpIndexForUser(username);
-            if (pfps[pfpIndex] != null) {
-                profilePic.setImage(pfps[pfpIndex].getImage());
-            }
-            messageContainer.add(profilePic);
-            messageContainer.add(Box.createHorizontalStrut(8));
-            
-            JPanel textContainer = new JPanel();
-            textContainer.setLayout(new BoxLayout(textContainer, BoxLayout.Y_AXIS));
-            textContainer.setBackground(messagePanel.getBackground());
-            textContainer.setAlignmentX(Component.LEFT_ALIGNMENT);
-            
-            JLabel usernameLabel = new JLabel(username != null ? username : "");
-            usernameLabel.setFont(new Font(usernameLabel.getFont().getName(), Font.PLAIN, 10));
-            usernameLabel.setForeground(dark ? Color.WHITE : Color.BLACK);
-            usernameLabel.setBackground(messagePanel.getBackground());
-            usernameLabel.setOpaque(false);
-            usernameLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
-            textContainer.add(usernameLabel);
-            
-            RoundedLabel label = new RoundedLabel(messageText, 20);
-            label.setBackground(new Color(200, 220, 240));
-            label.setAlignmentX(Component.LEFT_ALIGNMENT);
-            textContainer.add(label);
-            
-            messageContainer.add(textContainer);
-            messagePanel.add(messageContainer);
-            
-            messagePanel.revalidate();
-            Dimension prefSize = messageContainer.getPreferredSize();
-            messageContainer.setMaximumSize(new Dimension(Integer.MAX_VALUE, prefSize.height));
-            Dimension textPrefSize = textContainer.getPreferredSize();
-            textContainer.setMaximumSize(new Dimension(Integer.MAX_VALUE, textPrefSize.height));
-            
-            messagePanel.revalidate();
-            messagePanel.repaint();
-            
-            JScrollPane scrollPane = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, messagePanel);
-            if (scrollPane != null) {
-                JScrollBar vertical = scrollPane.getVerticalScrollBar();
-                vertical.setValue(vertical.getMaximum());
-            }
-        });
+    public void appendHistoryMessage(ChatRecord record) {
+        enqueueRow(new MessageListView.Row(record, true));
     }
 
     public void setClient(Client client) {
         this.client = client;
+        messageList.setUsers(client.users());
     }
 
     public void closeWindow() {
@@ -432,62 +473,9 @@ public class ClientGui extends JFrame {
         });
     }
 
-    private ImageIcon loadAndScaleIcon(String path, int size) {
-        ImageIcon icon = new ImageIcon(path);
-        Image img = icon.getImage().getScaledInstance(size, size, Image.SCALE_SMOOTH);
-        return new ImageIcon(img);
-    }
-    
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> new ClientGui("localhost", 8080));
 
 
     }
 }
-
-class RoundImageLabel extends JPanel {
-    private Image image;
-    private int size;
-    
-    public RoundImageLabel(int size) {
-        this.size = size;
-        setPreferredSize(new Dimension(size, size));
-        setOpaque(false);
-    }
-    
-    public void setImage(String imagePath) {
-        image = new ImageIcon(imagePath).getImage();
-        repaint();
-    }
-    
-    public void setImage(Image img) {
-        image = img;
-        repaint();
-    }
-    
-    @Override
-    protected void paintComponent(Graphics g) {
-        super.paintComponent(g);
-        
-        if (image == null) {
-            Graphics2D g2 = (Graphics2D) g.create();
-            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                    RenderingHints.VALUE_ANTIALIAS_ON);
-            g2.setColor(new Color(200, 200, 200));
-            g2.fillOval(0, 0, size, size);
-            g2.dispose();
-            return;
-        }
-        
-        Graphics2D g2 = (Graphics2D) g.create();
-        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                RenderingHints.VALUE_ANTIALIAS_ON);
-        
-        Shape circle = new Ellipse2D.Double(0, 0, size, size);
-        g2.setClip(circle);
-        
-        g2.drawImage(image, 0, 0, size, size, this);
-        
-        g2.dispose();
-    }
-}
@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Events that only matter for a moment, like typing indicators. They are
+ * never stored in history and never acknowledged.
+ *
+ * Only the latest event per sender is kept; once per tick everything posted
+ * since the last one goes out as a single frame per recipient, so a sender
+ * typing flat out costs each recipient at most one item per tick. Delivery
+ * is best effort: a recipient whose writer shard has more items waiting
+ * than the server's backlog threshold (a burst of broadcasts, or a slow
+ * reader holding the shard up) simply misses the frame, and the next state
+ * change or refresh replaces it anyway.
+ *
+ * The frame carries one FROM item per sender: 4-byte sender id, then the
+ * sender's payload.
+ */
+public class EphemeralEvents {
+
+    /**
+     * A connection that can be offered a frame without waiting for it.
+     */
+    interface Recipient {
+        /**
+         * @return false if the frame was dropped rather than written
+         */
+        boolean trySend(String key, byte[] value) throws IOException;
+    }
+
+    private final String key;
+    private final Supplier<List<? extends Recipient>> recipients;
+    private final Map<Integer, byte[]> latest = new ConcurrentHashMap<>();
+
+    /**
+     * @param recipients snapshot of who to deliver to, taken once per tick
+     */
+    public EphemeralEvents(String key, Supplier<List<? extends Recipient>> recipients) {
+        this.key = key;
+        this.recipients = recipients;
+    }
+
+    /**
+     * Record a sender's event, replacing any not yet delivered.
+     */
+    public void post(int senderId, byte[] payload) {
+        latest.put(senderId, payload);
+    }
+
+    public void start(long tickMs) {
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(tickMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                flush();
+            }
+        }, key.toLowerCase() + "-ticker");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    void flush() {
+        if (latest.isEmpty()) {
+            return;
+        }
+        int size = 0;
+        for (byte[] payload : latest.values()) {
+            size += 12 + payload.length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        for (Integer senderId : latest.keySet()) {
+            // A payload posted after the sizing pass may not fit; it stays for
+            // next tick. Only the payload written is removed, so a newer post
+            // made meanwhile stays too.
+            byte[] payload = latest.get(senderId);
+            if (payload == null || frame.remaining() < 12 + payload.length) {
+                continue;
+            }
+            latest.remove(senderId, payload);
+            frame.put(new byte[] {'F', 'R', 'O', 'M'});
+            frame.putInt(4 + payload.length);
+            frame.putInt(senderId);
+            frame.put(payload);
+        }
+        if (frame.position() == 0) {
+            return;
+        }
+        byte[] value = new byte[frame.position()];
+        System.arraycopy(frame.array(), 0, value, 0, value.length);
+
+        for (Recipient recipient : recipients.get()) {
+            try {
+                if (recipient.trySend(key, value)) {
+                    ServerMetrics.ephemeralSent.increment();
+                } else {
+                    ServerMetrics.ephemeralDropped.increment();
+                }
+            } catch (IOException e) {
+                // The connection's own handler deals with it
+                ServerMetrics.ephemeralDropped.increment();
+            }
+        }
+    }
+}
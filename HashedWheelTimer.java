@@ -0,0 +1,144 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coarse timer for large numbers of deadlines that are mostly pushed back
+ * or cancelled before they fire, such as one idle check per connection.
+ *
+ * Timeouts are hashed into a ring of buckets by the tick they expire on;
+ * one thread advances a tick at a time and only looks at the bucket under
+ * it. Scheduling and cancelling are O(1) and take no lock, at the cost of
+ * firing up to one tick late. Tasks run on the timer thread, so they must
+ * be short and must not block.
+ */
+public final class HashedWheelTimer {
+
+    private final long tickNanos;
+    private final List<Timeout>[] wheel;
+    private final int mask;
+    // Handed over to the timer thread, which alone touches the wheel
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean stopped = false;
+    private long tick = 0;
+
+    /**
+     * @param wheelSize number of buckets, rounded up to a power of two;
+     *                  ticks x buckets should cover the usual delay
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick duration and wheel size must be positive");
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(wheelSize - 1) << 1;
+        this.wheel = new List[Math.max(1, size)];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        this.mask = wheel.length - 1;
+
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Run task once, no earlier than delay from now.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + unit.toNanos(Math.max(0, delay)));
+        if (!stopped) {
+            pending.add(timeout);
+        }
+        return timeout;
+    }
+
+    public void stop() {
+        stopped = true;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (!stopped) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleepNanos = deadline - (System.nanoTime() - startNanos);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (stopped) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            transferPending();
+            expire(wheel[(int) (tick & mask)], System.nanoTime() - startNanos);
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // Anything already due goes in the bucket about to be expired
+            long expiryTick = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.rounds = (expiryTick - tick) / wheel.length;
+            wheel[(int) (expiryTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket, long now) {
+        for (int i = bucket.size() - 1; i >= 0; i--) {
+            Timeout timeout = bucket.get(i);
+            if (!timeout.cancelled) {
+                if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                    continue;
+                }
+                if (timeout.deadline > now) {
+                    continue;
+                }
+                try {
+                    timeout.task.run();
+                } catch (Throwable t) {
+                    System.err.println("[Timer] Task failed: " + t);
+                }
+            }
+            // Order within a bucket does not matter, so remove by swapping in the last
+            int last = bucket.size() - 1;
+            bucket.set(i, bucket.get(last));
+            bucket.remove(last);
+        }
+    }
+
+    public static final class Timeout {
+        private final Runnable task;
+        // Nanoseconds since the timer started
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stop the task from running if it has not yet. The entry itself is
+         * dropped when the timer next passes its bucket.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
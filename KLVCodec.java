@@ -0,0 +1,351 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-connection KLV codec that speaks both the classic framing from
+ * {@link KLVExample} and a compact framing for small control messages.
+ *
+ * Classic:  4-byte ASCII key, 4-byte big-endian length, value
+ * Compact:  1 byte (0x80 | command code), unsigned LEB128 varint length, value
+ *
+ * Classic keys are ASCII, so their first byte never has the high bit set;
+ * that bit alone tells the two framings apart, which lets the codec detect
+ * the framing of every incoming frame. A server's codec ({@link #mirroring})
+ * sends in whatever framing the peer last used, so a client opts into compact
+ * framing simply by sending compact frames; a client's codec keeps the
+ * framing it was configured with whatever arrives. Keys without a command
+ * code always go out classic.
+ *
+ * Incoming lengths are checked before anything is allocated: a negative
+ * length is fatal and a value over the key's limit is refused with
+ * {@link FrameTooLargeException}.
+ */
+public class KLVCodec {
+
+    public enum Framing { CLASSIC, COMPACT }
+
+    private static final int COMPACT_FLAG = 0x80;
+
+    // Index = compact command code. Append only: codes are part of the wire format.
+    private static final String[] COMMANDS = {
+            null, "JOIN", "NAME", "MSG", "READ", "TIME", "QUIT", "RESP", "ERR",
+            "OPTS", "ACK"
+    };
+
+    // Applies to keys without a limit of their own (chat.maxFrame)
+    private static final int DEFAULT_MAX_LENGTH = Integer.getInteger("chat.maxFrame", 1 << 20);
+
+    private volatile Framing framing;
+    // Only the server side follows the peer; two mirroring ends could drag
+    // each other back to classic on a single classic frame
+    private final boolean mirror;
+    private volatile int defaultMaxLength = DEFAULT_MAX_LENGTH;
+    private final Map<String, Integer> maxLengths = new ConcurrentHashMap<>();
+
+    public KLVCodec() {
+        this(Framing.CLASSIC);
+    }
+
+    /**
+     * @param framing framing for every outgoing frame
+     */
+    public KLVCodec(Framing framing) {
+        this(framing, false);
+    }
+
+    private KLVCodec(Framing framing, boolean mirror) {
+        this.framing = framing;
+        this.mirror = mirror;
+    }
+
+    /**
+     * A codec that answers in the framing the peer last used, classic until
+     * its first frame is seen.
+     */
+    public static KLVCodec mirroring() {
+        return new KLVCodec(Framing.CLASSIC, true);
+    }
+
+    /**
+     * The framing used for outgoing frames.
+     */
+    public Framing framing() {
+        return framing;
+    }
+
+    public byte[] encode(String key, byte[] value) {
+        return encode(framing, key, value);
+    }
+
+    public static byte[] encode(Framing framing, String key, byte[] value) {
+        byte[] frame = new byte[encodedLength(framing, key, value.length)];
+        encodeInto(framing, key, value, value.length, frame);
+        return frame;
+    }
+
+    /**
+     * Size of the frame {@link #encodeInto} writes for a value of this length.
+     */
+    public static int encodedLength(Framing framing, String key, int valueLength) {
+        int code = framing == Framing.COMPACT ? commandCode(key) : 0;
+        return (code == 0 ? 8 : 1 + varintSize(valueLength)) + valueLength;
+    }
+
+    /**
+     * Encode a frame into the start of a caller's buffer, such as one from
+     * a {@link BufferPool}, which must hold at least
+     * {@link #encodedLength} bytes.
+     *
+     * @param valueLength how much of value to send
+     * @return the frame length
+     */
+    public static int encodeInto(Framing framing, String key, byte[] value, int valueLength, byte[] frame) {
+        int code = framing == Framing.COMPACT ? commandCode(key) : 0;
+        int headerLength;
+        if (code == 0) {
+            if (key.length() > 4) {
+                throw new IllegalArgumentException("Key '" + key + "' is too long (max 4 bytes)");
+            }
+            for (int i = 0; i < 4; i++) {
+                frame[i] = i < key.length() ? (byte) key.charAt(i) : 0;
+            }
+            frame[4] = (byte) (valueLength >>> 24);
+            frame[5] = (byte) (valueLength >>> 16);
+            frame[6] = (byte) (valueLength >>> 8);
+            frame[7] = (byte) valueLength;
+            headerLength = 8;
+        } else {
+            frame[0] = (byte) (COMPACT_FLAG | code);
+            headerLength = writeVarint(frame, 1, valueLength);
+        }
+        System.arraycopy(value, 0, frame, headerLength, valueLength);
+        return headerLength + valueLength;
+    }
+
+    /**
+     * Largest value accepted for the key; bigger frames are refused before
+     * anything is allocated for them.
+     */
+    public int maxLength(String key) {
+        Integer max = maxLengths.get(key);
+        return max != null ? max : defaultMaxLength;
+    }
+
+    public void setMaxLength(int max) {
+        this.defaultMaxLength = max;
+    }
+
+    public void setMaxLength(String key, int max) {
+        maxLengths.put(key, max);
+    }
+
+    /**
+     * Read one frame in either framing; a mirroring codec remembers which one the peer used.
+     *
+     * With a socket read timeout, a SocketTimeoutException from this method
+     * means no byte of a new frame had arrived, so reading can simply be
+     * retried. A timeout once a frame has started leaves the stream out of
+     * sync and is reported as a plain IOException instead.
+     *
+     * @return null if the stream ended
+     * @throws FrameTooLargeException if the value is over the key's limit;
+     *         the stream is left at the start of the value
+     */
+    public KLVExample.KLVMessage read(InputStream input) throws IOException {
+        Header header = readHeader(input);
+        if (header == null) {
+            return null;
+        }
+        byte[] value = readValue(input, header);
+        return value == null ? null : new KLVExample.KLVMessage(header.key, value);
+    }
+
+    /**
+     * Read only the key and length of the next frame, so that a large value
+     * can be streamed (see {@link KLVStreamReader}) or skipped instead of
+     * being read into one array.
+     *
+     * @return null if the stream ended
+     */
+    public Header readHeader(InputStream input) throws IOException {
+        int first = input.read();
+        if (first == -1) {
+            return null;
+        }
+        try {
+            return readHeaderRest(first, input);
+        } catch (SocketTimeoutException e) {
+            throw new IOException("Timed out in the middle of a frame", e);
+        }
+    }
+
+    /**
+     * Read the value of a frame whose header was just read, enforcing the
+     * key's size limit.
+     *
+     * @return null if the stream ended
+     */
+    public byte[] readValue(InputStream input, Header header) throws IOException {
+        if (header.length > maxLength(header.key)) {
+            throw new FrameTooLargeException(header.key, header.length, maxLength(header.key));
+        }
+        byte[] value = new byte[header.length];
+        return readValue(input, header, value) ? value : null;
+    }
+
+    /**
+     * Read the value of a frame into the start of a caller's buffer, such as
+     * one from a {@link BufferPool}, enforcing the key's size limit.
+     *
+     * @return false if the stream ended
+     */
+    public boolean readValue(InputStream input, Header header, byte[] into) throws IOException {
+        if (header.length > maxLength(header.key)) {
+            throw new FrameTooLargeException(header.key, header.length, maxLength(header.key));
+        }
+        try {
+            return recvExact(input, into, 0, header.length);
+        } catch (SocketTimeoutException e) {
+            throw new IOException("Timed out in the middle of a frame", e);
+        }
+    }
+
+    private Header readHeaderRest(int first, InputStream input) throws IOException {
+        String key;
+        int length;
+        if ((first & COMPACT_FLAG) != 0) {
+            int code = first & ~COMPACT_FLAG;
+            if (code >= COMMANDS.length || COMMANDS[code] == null) {
+                throw new IOException("Unknown compact command code: " + code);
+            }
+            key = COMMANDS[code];
+            length = readVarint(input);
+            if (length == -1) {
+                return null;
+            }
+            if (mirror) {
+                framing = Framing.COMPACT;
+            }
+        } else {
+            byte[] header = new byte[8];
+            header[0] = (byte) first;
+            if (!recvExact(input, header, 1, 7)) {
+                return null;
+            }
+            int keyLength = 4;
+            for (int i = 0; i < 4; i++) {
+                if (header[i] == 0) {
+                    keyLength = i;
+                    break;
+                }
+            }
+            key = new String(header, 0, keyLength, StandardCharsets.US_ASCII);
+            length = KLVCursor.readInt(header, 4);
+            if (length < 0) {
+                // Nothing after this can be trusted to be a frame boundary
+                throw new IOException("Negative length " + length + " for " + key);
+            }
+            // A classic frame for a key with a compact code means the peer chose classic
+            if (mirror && commandCode(key) != 0) {
+                framing = Framing.CLASSIC;
+            }
+        }
+        return new Header(key, length);
+    }
+
+    /**
+     * Key and value length of a frame whose value is still on the stream.
+     */
+    public static final class Header {
+        public final String key;
+        public final int length;
+
+        Header(String key, int length) {
+            this.key = key;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A frame's value is over the limit for its key. Nothing of the value
+     * has been read, so the caller can skip {@link #length} bytes and carry
+     * on, or drop the connection.
+     */
+    public static class FrameTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final String key;
+        final int length;
+
+        FrameTooLargeException(String key, int length, int max) {
+            super(key + " frame of " + length + " bytes is over the " + max + " byte limit");
+            this.key = key;
+            this.length = length;
+        }
+    }
+
+    static int commandCode(String key) {
+        for (int code = 1; code < COMMANDS.length; code++) {
+            if (COMMANDS[code].equals(key)) {
+                return code;
+            }
+        }
+        return 0;
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static int writeVarint(byte[] buffer, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * @return the decoded length, or -1 if the stream ended
+     */
+    private static int readVarint(InputStream input) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = input.read();
+            if (b == -1) {
+                return -1;
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0 || (shift == 28 && (b & 0x70) != 0)) {
+                    throw new IOException("Varint length does not fit in an int");
+                }
+                return value;
+            }
+        }
+        throw new IOException("Varint length is longer than 5 bytes");
+    }
+
+    private static boolean recvExact(InputStream input, byte[] data, int offset, int numBytes)
+            throws IOException {
+        int totalRead = 0;
+        while (totalRead < numBytes) {
+            int bytesRead = input.read(data, offset + totalRead, numBytes - totalRead);
+            if (bytesRead == -1) {
+                return false;
+            }
+            totalRead += bytesRead;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,205 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lazy, zero-copy cursor over a run of KLV items stored in a byte array.
+ *
+ * The cursor never copies the region it walks: each call to {@link #next()}
+ * parses one header in place and exposes the value as an (offset, length)
+ * window into the backing array. Values are only copied when the caller asks
+ * for them with {@link #value()} or {@link #valueString()}.
+ *
+ * Bounds are validated strictly: a truncated header, a negative length or a
+ * length running past the end of the region throws instead of being skipped.
+ */
+public class KLVCursor {
+
+    private final byte[] data;
+    private final int end;
+    private int position;
+
+    private int keyOffset = -1;
+    private int valueOffset;
+    private int valueLength;
+
+    /**
+     * Walk every KLV item in the given array.
+     */
+    public KLVCursor(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    /**
+     * Walk the KLV items stored in data[offset, offset + length).
+     */
+    public KLVCursor(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > data.length - length) {
+            throw new IllegalArgumentException(String.format(
+                    "Region [%d, +%d) is outside of a %d byte array", offset, length, data.length));
+        }
+        this.data = data;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Open a cursor over the nested items of the outer KLV frame at the start
+     * of data, without copying the outer value.
+     */
+    public static KLVCursor nested(byte[] data) {
+        KLVCursor outer = new KLVCursor(data);
+        if (!outer.next()) {
+            throw new IllegalArgumentException(
+                    "Data too short for KLV structure (need at least 8 bytes)");
+        }
+        return outer.nested();
+    }
+
+    /**
+     * Advance to the next item.
+     *
+     * @return false once the region is exhausted
+     */
+    public boolean next() {
+        if (position == end) {
+            keyOffset = -1;
+            return false;
+        }
+        if (end - position < 8) {
+            throw new IllegalArgumentException(String.format(
+                    "Truncated KLV header at offset %d (%d bytes left, need 8)", position, end - position));
+        }
+
+        int length = readInt(data, position + 4);
+        if (length < 0 || length > end - position - 8) {
+            throw new IllegalArgumentException(String.format(
+                    "KLV length %d at offset %d exceeds the %d bytes available",
+                    length, position, end - position - 8));
+        }
+
+        keyOffset = position;
+        valueOffset = position + 8;
+        valueLength = length;
+        position = valueOffset + length;
+        return true;
+    }
+
+    /**
+     * Advance until an item with the given key is found, skipping the values
+     * of everything in between without looking at them.
+     *
+     * @return false if no further item has that key
+     */
+    public boolean seek(String key) {
+        while (next()) {
+            if (keyIs(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compare the current key against an ASCII key without allocating.
+     */
+    public boolean keyIs(String key) {
+        checkCurrent();
+        if (key.length() > 4) {
+            return false;
+        }
+        for (int i = 0; i < 4; i++) {
+            int expected = i < key.length() ? key.charAt(i) : 0;
+            if ((data[keyOffset + i] & 0xFF) != expected) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String key() {
+        checkCurrent();
+        int keyLength = 4;
+        for (int i = 0; i < 4; i++) {
+            if (data[keyOffset + i] == 0) {
+                keyLength = i;
+                break;
+            }
+        }
+        return new String(data, keyOffset, keyLength, StandardCharsets.US_ASCII);
+    }
+
+    public byte[] array() {
+        return data;
+    }
+
+    public int valueOffset() {
+        checkCurrent();
+        return valueOffset;
+    }
+
+    public int valueLength() {
+        checkCurrent();
+        return valueLength;
+    }
+
+    /**
+     * Copy the current value out of the backing array.
+     */
+    public byte[] value() {
+        checkCurrent();
+        byte[] value = new byte[valueLength];
+        System.arraycopy(data, valueOffset, value, 0, valueLength);
+        return value;
+    }
+
+    public String valueString() {
+        checkCurrent();
+        return new String(data, valueOffset, valueLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read the current value as a 4-byte big-endian int.
+     */
+    public int valueInt() {
+        checkCurrent();
+        if (valueLength != 4) {
+            throw new IllegalArgumentException("Expected a 4 byte value for " + key() + ", got " + valueLength);
+        }
+        return readInt(data, valueOffset);
+    }
+
+    /**
+     * Read the current value as an 8-byte big-endian long.
+     */
+    public long valueLong() {
+        checkCurrent();
+        if (valueLength != 8) {
+            throw new IllegalArgumentException("Expected an 8 byte value for " + key() + ", got " + valueLength);
+        }
+        return ((long) readInt(data, valueOffset) << 32) | (readInt(data, valueOffset + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Open a cursor over the KLV items nested inside the current value.
+     */
+    public KLVCursor nested() {
+        checkCurrent();
+        return new KLVCursor(data, valueOffset, valueLength);
+    }
+
+    public KLVExample.KLVMessage toMessage() {
+        return new KLVExample.KLVMessage(key(), value());
+    }
+
+    private void checkCurrent() {
+        if (keyOffset < 0) {
+            throw new IllegalStateException("Cursor is not positioned on an item; call next() first");
+        }
+    }
+
+    static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24)
+                | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+}
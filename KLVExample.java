@@ -125,41 +125,46 @@ public class KLVExample {
      */
     public static byte[] encodeNestedKLV(String key, List<KLVMessage> nestedItems)
             throws Exception {
+        // Wrap in outer KLV
+        return encodeKLV(key, encodeKLVItems(nestedItems));
+    }
+
+    /**
+     * Encode a run of KLV items back to back, without an outer header.
+     * This is the value of a nested KLV structure.
+     *
+     * @param items KLV messages to encode in order
+     * @return Concatenated KLV structures
+     */
+    public static byte[] encodeKLVItems(List<KLVMessage> items) throws Exception {
         ByteArrayOutputStream nestedData = new ByteArrayOutputStream();
 
         // Encode each nested item
-        for (KLVMessage item : nestedItems) {
+        for (KLVMessage item : items) {
             byte[] itemBytes = encodeKLV(item.key, item.value);
             nestedData.write(itemBytes);
         }
 
-        // Wrap in outer KLV
-        return encodeKLV(key, nestedData.toByteArray());
+        return nestedData.toByteArray();
     }
 
     /**
      * Decode a KLV structure that contains nested KLV items.
      *
+     * Prefer walking a {@link KLVCursor} directly when the items do not all
+     * need to be kept: this method materialises every one of them.
+     *
      * @param data Binary data containing nested KLV structure
      * @return List of nested KLV messages
+     * @throws IllegalArgumentException if a nested item is truncated
      */
     public static List<KLVMessage> decodeNestedKLV(byte[] data) throws Exception {
-        // Decode outer structure
-        KLVMessage outer = decodeKLV(data);
+        // Walk the outer value in place instead of copying it first
+        KLVCursor cursor = KLVCursor.nested(data);
 
-        // Parse nested items from the value
         List<KLVMessage> nestedItems = new ArrayList<>();
-        int offset = 0;
-        byte[] innerData = outer.value;
-
-        while (offset + 8 <= innerData.length) {
-            try {
-                KLVMessage nested = decodeKLV(innerData, offset);
-                nestedItems.add(nested);
-                offset += 8 + nested.value.length;
-            } catch (Exception e) {
-                break; // No more complete KLV structures
-            }
+        while (cursor.next()) {
+            nestedItems.add(cursor.toMessage());
         }
 
         return nestedItems;
@@ -0,0 +1,205 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams the nested items of one outer KLV frame straight off an
+ * InputStream (like a socket) without buffering the outer value.
+ *
+ * Only the item currently under the reader is ever held in memory, and only
+ * if the caller asks for its value; skipped items are discarded as they are
+ * read. Every nested length is checked against what is left of the outer
+ * frame, so a corrupt item can never make the reader run past its frame.
+ */
+public class KLVStreamReader {
+
+    private final InputStream input;
+    private final String outerKey;
+    private final byte[] header = new byte[8];
+
+    private long remaining;
+    private String key;
+    private int valueLength;
+    private boolean valuePending;
+
+    /**
+     * Wrap a stream whose outer header has already been consumed.
+     *
+     * @param outerLength length of the outer value still to be read
+     */
+    public KLVStreamReader(InputStream input, String outerKey, int outerLength) {
+        if (outerLength < 0) {
+            throw new IllegalArgumentException("Negative KLV length: " + outerLength);
+        }
+        this.input = input;
+        this.outerKey = outerKey;
+        this.remaining = outerLength;
+    }
+
+    /**
+     * Read an outer KLV header from the stream and position a reader on its
+     * nested items.
+     *
+     * @return null if the stream ended cleanly before a new frame started
+     */
+    public static KLVStreamReader open(InputStream input) throws IOException {
+        byte[] header = new byte[8];
+        int first = input.read();
+        if (first == -1) {
+            return null;
+        }
+        header[0] = (byte) first;
+        readFully(input, header, 1, 7);
+
+        String key = decodeKey(header);
+        int length = KLVCursor.readInt(header, 4);
+        return new KLVStreamReader(input, key, length);
+    }
+
+    public String outerKey() {
+        return outerKey;
+    }
+
+    /**
+     * Advance to the next nested item, discarding the value of the previous
+     * one if it was not read.
+     *
+     * @return false once the outer value is exhausted
+     */
+    public boolean next() throws IOException {
+        if (valuePending) {
+            skipValue();
+        }
+        if (remaining == 0) {
+            key = null;
+            return false;
+        }
+        if (remaining < 8) {
+            throw new IOException("Truncated nested KLV header (" + remaining + " bytes left, need 8)");
+        }
+
+        readFully(input, header, 0, 8);
+        remaining -= 8;
+
+        int length = KLVCursor.readInt(header, 4);
+        if (length < 0 || length > remaining) {
+            throw new IOException(String.format(
+                    "Nested KLV length %d exceeds the %d bytes left in %s", length, remaining, outerKey));
+        }
+
+        key = decodeKey(header);
+        valueLength = length;
+        valuePending = true;
+        return true;
+    }
+
+    /**
+     * Advance until an item with the given key is found.
+     *
+     * @return false if no further item has that key
+     */
+    public boolean seek(String wanted) throws IOException {
+        while (next()) {
+            if (key.equals(wanted)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String key() {
+        checkCurrent();
+        return key;
+    }
+
+    public int valueLength() {
+        checkCurrent();
+        return valueLength;
+    }
+
+    public byte[] readValue() throws IOException {
+        checkPending();
+        byte[] value = new byte[valueLength];
+        readFully(input, value, 0, valueLength);
+        consumed();
+        return value;
+    }
+
+    public String readValueString() throws IOException {
+        return new String(readValue(), StandardCharsets.UTF_8);
+    }
+
+    public void skipValue() throws IOException {
+        checkPending();
+        skipFully(input, valueLength);
+        consumed();
+    }
+
+    /**
+     * Discard whatever is left of the outer frame so the stream is positioned
+     * on the next frame.
+     */
+    public void skipRest() throws IOException {
+        if (valuePending) {
+            skipValue();
+        }
+        skipFully(input, remaining);
+        remaining = 0;
+        key = null;
+    }
+
+    private void consumed() {
+        remaining -= valueLength;
+        valuePending = false;
+    }
+
+    private void checkCurrent() {
+        if (key == null) {
+            throw new IllegalStateException("Reader is not positioned on an item; call next() first");
+        }
+    }
+
+    private void checkPending() {
+        checkCurrent();
+        if (!valuePending) {
+            throw new IllegalStateException("Value of " + key + " was already consumed");
+        }
+    }
+
+    private static String decodeKey(byte[] header) {
+        int keyLength = 4;
+        for (int i = 0; i < 4; i++) {
+            if (header[i] == 0) {
+                keyLength = i;
+                break;
+            }
+        }
+        return new String(header, 0, keyLength, StandardCharsets.US_ASCII);
+    }
+
+    static void readFully(InputStream input, byte[] buffer, int offset, int length) throws IOException {
+        int totalRead = 0;
+        while (totalRead < length) {
+            int bytesRead = input.read(buffer, offset + totalRead, length - totalRead);
+            if (bytesRead == -1) {
+                throw new EOFException("Unexpected end of stream");
+            }
+            totalRead += bytesRead;
+        }
+    }
+
+    static void skipFully(InputStream input, long length) throws IOException {
+        while (length > 0) {
+            long skipped = input.skip(length);
+            if (skipped <= 0) {
+                // skip() may legitimately return 0; fall back to a read to detect EOF
+                if (input.read() == -1) {
+                    throw new EOFException("Unexpected end of stream");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineBreakMeasurer;
+import java.awt.font.LineMetrics;
+import java.awt.font.TextAttribute;
+import java.awt.font.TextLayout;
+import java.text.AttributedString;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The wrapped lines of one message bubble at one wrap width.
+ *
+ * Built with LineBreakMeasurer against a fixed FontRenderContext, so it can
+ * be computed on any thread; the EDT only reads the resulting size and draws
+ * the lines. Hard line breaks in the text start a new paragraph.
+ */
+public final class MessageLayout {
+
+    // Matches what Swing paints labels with on the usual desktops
+    static final FontRenderContext FRC = new FontRenderContext(null, true, false);
+
+    final String text;
+    final int wrapWidth;
+    final int width;
+    final int height;
+
+    // One entry per line; null for an empty line
+    private final TextLayout[] lines;
+    private final float[] baselines;
+
+    private MessageLayout(String text, int wrapWidth, TextLayout[] lines, float[] baselines, int width, int height) {
+        this.text = text;
+        this.wrapWidth = wrapWidth;
+        this.lines = lines;
+        this.baselines = baselines;
+        this.width = width;
+        this.height = height;
+    }
+
+    public static MessageLayout compute(String text, Font font, int wrapWidth) {
+        LineMetrics metrics = font.getLineMetrics("Xg", FRC);
+        float emptyLineHeight = metrics.getAscent() + metrics.getDescent() + metrics.getLeading();
+
+        List<TextLayout> lines = new ArrayList<>();
+        List<Float> baselines = new ArrayList<>();
+        float y = 0;
+        float width = 0;
+
+        for (String paragraph : text.split("\n", -1)) {
+            if (paragraph.isEmpty()) {
+                lines.add(null);
+                baselines.add(y + metrics.getAscent());
+                y += emptyLineHeight;
+                continue;
+            }
+            AttributedString styled = new AttributedString(paragraph);
+            styled.addAttribute(TextAttribute.FONT, font);
+            LineBreakMeasurer measurer = new LineBreakMeasurer(styled.getIterator(), FRC);
+            while (measurer.getPosition() < paragraph.length()) {
+                TextLayout line = measurer.nextLayout(wrapWidth);
+                y += line.getAscent();
+                lines.add(line);
+                baselines.add(y);
+                y += line.getDescent() + line.getLeading();
+                width = Math.max(width, line.getVisibleAdvance());
+            }
+        }
+
+        float[] baselineArray = new float[baselines.size()];
+        for (int i = 0; i < baselineArray.length; i++) {
+            baselineArray[i] = baselines.get(i);
+        }
+        return new MessageLayout(text, wrapWidth, lines.toArray(new TextLayout[0]), baselineArray,
+                (int) Math.ceil(width), (int) Math.ceil(y));
+    }
+
+    /**
+     * Draw the lines with their top-left corner at (x, y) in the current colour.
+     */
+    public void draw(Graphics2D g, int x, int y) {
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i] != null) {
+                lines[i].draw(g, x, y + baselines[i]);
+            }
+        }
+    }
+}
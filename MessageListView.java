@@ -0,0 +1,577 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Virtualized list of chat messages.
+ *
+ * Messages are kept as a plain model of rows; nothing per message lives in
+ * the component tree. A single {@link MessageRowRenderer} is configured for
+ * each visible row and stamped onto the list through a CellRendererPane, the
+ * same way JList paints its cells, so painting and memory for the UI stay
+ * constant no matter how many messages have arrived.
+ *
+ * Row positions are kept as a prefix sum (rowTops) so finding the first
+ * visible row is a binary search and appending a row is O(1).
+ *
+ * The model is bounded by a scrollback limit. Rows beyond it are evicted
+ * from the end opposite to where rows are being added, in chunks so the
+ * O(n) prefix sum rebuild is amortised; the owner can page evicted rows
+ * back in from the server's history (see {@link #isNewerEvicted()}).
+ *
+ * Bubble text is wrapped off the EDT: each row caches a {@link MessageLayout}
+ * for the wrap width it was computed at. Rows are normally prepared before
+ * they reach the list; when the width changes they are re-wrapped on a
+ * background thread, visible rows first, and keep their old height as an
+ * estimate until the new layout lands.
+ *
+ * All methods except {@link #prepare(Row)} must be called on the EDT.
+ */
+public class MessageListView extends JComponent implements Scrollable {
+
+    // Vertical gap above every row, as the old Box.createVerticalStrut(10)
+    static final int ROW_GAP = 10;
+
+    // Space beside the bubble text: avatar, gap, bubble padding and a margin
+    // so bubbles never run to the edge
+    private static final int WRAP_CHROME = 30 + 8 + 20 + 40;
+    private static final int MIN_WRAP_WIDTH = 40;
+    private static final int DEFAULT_WRAP_WIDTH = 240;
+
+    private static final ExecutorService LAYOUT_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "message-layout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static class Row {
+        final ChatRecord record;
+        final boolean history;
+        volatile MessageLayout layout;
+        int height;
+        int width;
+
+        Row(ChatRecord record, boolean history) {
+            this.record = record;
+            this.history = history;
+        }
+
+        /**
+         * A room message the server keeps in history, which an AFTR page
+         * can bring back; unlike local notices (seq 0), DMs and events.
+         */
+        boolean isRoomHistory() {
+            return record.seq > 0 && "MSG".equals(record.type);
+        }
+    }
+
+    private final List<Row> rows = new ArrayList<>();
+    private int[] rowTops = new int[256];
+    private int totalHeight = 0;
+    private int maxRowWidth = 0;
+
+    private int scrollbackLimit = Integer.MAX_VALUE;
+    private boolean newerEvicted = false;
+
+    private final CellRendererPane rendererPane = new CellRendererPane();
+    private final MessageRowRenderer renderer;
+    private final Font bubbleFont;
+
+    private volatile int wrapWidth = DEFAULT_WRAP_WIDTH;
+    // Layouts finished by the background thread, applied in one EDT pass
+    private final Queue<LayoutResult> finishedLayouts = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean applyScheduled = new AtomicBoolean(false);
+
+    private static class LayoutResult {
+        final Row row;
+        final MessageLayout layout;
+
+        LayoutResult(Row row, MessageLayout layout) {
+            this.row = row;
+            this.layout = layout;
+        }
+    }
+
+    public MessageListView(AvatarCache avatars) {
+        renderer = new MessageRowRenderer(avatars);
+        bubbleFont = renderer.bubbleFont();
+        add(rendererPane);
+        setOpaque(true);
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                rewrap();
+            }
+        });
+    }
+
+    /**
+     * Wrap a row's text for the current width. Safe to call from any thread,
+     * and meant to be called off the EDT before the row is appended.
+     */
+    public void prepare(Row row) {
+        int width = wrapWidth;
+        MessageLayout layout = row.layout;
+        if (layout == null || layout.wrapWidth != width) {
+            row.layout = MessageLayout.compute(renderer.textFor(row.record), bubbleFont, width);
+        }
+    }
+
+    private boolean isPrepared(Row row) {
+        MessageLayout layout = row.layout;
+        return layout != null && layout.wrapWidth == wrapWidth;
+    }
+
+    /**
+     * The view width changed: re-wrap every row in the background, starting
+     * with the ones on screen.
+     */
+    private void rewrap() {
+        int width = Math.max(MIN_WRAP_WIDTH, getWidth() - WRAP_CHROME);
+        if (width == wrapWidth || rows.isEmpty()) {
+            wrapWidth = width;
+            return;
+        }
+        wrapWidth = width;
+        Rectangle visible = getVisibleRect();
+        int first = rowAt(visible.y);
+        List<Row> ordered = new ArrayList<>(rows.subList(first, rows.size()));
+        ordered.addAll(rows.subList(0, first));
+        layoutInBackground(ordered);
+    }
+
+    private void layoutInBackground(List<Row> pending) {
+        int width = wrapWidth;
+        LAYOUT_EXECUTOR.execute(() -> {
+            for (int i = 0; i < pending.size(); i++) {
+                if (wrapWidth != width) {
+                    return; // superseded by a newer width
+                }
+                Row row = pending.get(i);
+                finishedLayouts.offer(new LayoutResult(row,
+                        MessageLayout.compute(renderer.textFor(row.record), bubbleFont, width)));
+                if ((i + 1) % 64 == 0 || i == pending.size() - 1) {
+                    if (applyScheduled.compareAndSet(false, true)) {
+                        SwingUtilities.invokeLater(this::applyLayouts);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Swap in finished layouts, remeasure those rows and keep the row at
+     * the top of the view (or the bottom, if pinned there) where it was.
+     */
+    private void applyLayouts() {
+        applyScheduled.set(false);
+        JViewport viewport = getParent() instanceof JViewport ? (JViewport) getParent() : null;
+        boolean atBottom = false;
+        int anchor = 0;
+        int anchorOffset = 0;
+        if (viewport != null && !rows.isEmpty()) {
+            Point position = viewport.getViewPosition();
+            atBottom = position.y + viewport.getExtentSize().height >= totalHeight;
+            anchor = rowAt(position.y);
+            anchorOffset = position.y - rowTops[anchor];
+        }
+
+        boolean changed = false;
+        LayoutResult result;
+        while ((result = finishedLayouts.poll()) != null) {
+            if (result.layout.wrapWidth != wrapWidth) {
+                continue;
+            }
+            result.row.layout = result.layout;
+            measure(result.row);
+            changed = true;
+        }
+        if (!changed) {
+            return;
+        }
+
+        rebuildTops();
+        revalidate();
+        if (viewport != null) {
+            syncViewSize(viewport);
+            int maxY = Math.max(0, totalHeight - viewport.getExtentSize().height);
+            int y = atBottom || anchor >= rows.size() ? maxY : Math.min(maxY, rowTops[anchor] + anchorOffset);
+            viewport.setViewPosition(new Point(viewport.getViewPosition().x, y));
+        }
+        repaint();
+    }
+
+    public void setUsers(UserTable users) {
+        renderer.setUsers(users);
+        repaint();
+    }
+
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    public void setScrollbackLimit(int limit) {
+        this.scrollbackLimit = Math.max(1, limit);
+    }
+
+    /**
+     * True once rows were evicted from the bottom to make room for an older
+     * page; new rows must then be fetched as a page rather than appended live.
+     */
+    public boolean isNewerEvicted() {
+        return newerEvicted;
+    }
+
+    public void setNewerEvicted(boolean newerEvicted) {
+        this.newerEvicted = newerEvicted;
+    }
+
+    /**
+     * @return sequence number of the oldest server message shown, or 0
+     */
+    public long firstSeq() {
+        for (Row row : rows) {
+            if (row.record.seq > 0) {
+                return row.record.seq;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return sequence number of the newest room history message shown, or 0.
+     *         DMs and events appended past a gap must not move the anchor
+     *         newer pages are fetched from.
+     */
+    public long lastSeq() {
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            if (rows.get(i).isRoomHistory()) {
+                return rows.get(i).record.seq;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Remove every row, e.g. when the seqs they carry no longer mean anything.
+     */
+    public void clear() {
+        evict(0, rows.size());
+        newerEvicted = false;
+        revalidate();
+        repaint();
+    }
+
+    /**
+     * Append one message and scroll to it.
+     */
+    public void append(ChatRecord record, boolean history) {
+        appendAll(List.of(new Row(record, history)));
+    }
+
+    /**
+     * Append a batch of rows with a single layout pass, repaint and scroll,
+     * however many rows it holds.
+     */
+    public void appendAll(List<Row> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        int batchTop = totalHeight;
+        if (rows.size() + batch.size() >= rowTops.length) {
+            int[] grown = new int[Math.max(rowTops.length * 2, rows.size() + batch.size() + 1)];
+            System.arraycopy(rowTops, 0, grown, 0, rowTops.length);
+            rowTops = grown;
+        }
+        List<Row> unprepared = new ArrayList<>();
+        for (Row row : batch) {
+            if (!isPrepared(row)) {
+                unprepared.add(row);
+            }
+            measure(row);
+            rowTops[rows.size()] = totalHeight;
+            rows.add(row);
+            totalHeight += row.height;
+            maxRowWidth = Math.max(maxRowWidth, row.width);
+        }
+        rowTops[rows.size()] = totalHeight;
+
+        if (rows.size() - scrollbackLimit > evictionSlack()) {
+            int removed = evict(0, rows.size() - scrollbackLimit);
+            batchTop -= removed;
+            moveView(-removed);
+        }
+
+        revalidate();
+        repaint(0, batchTop, getWidth(), totalHeight - batchTop);
+        scrollRectToVisible(new Rectangle(0, totalHeight - 1, 1, 1));
+        if (!unprepared.isEmpty()) {
+            layoutInBackground(unprepared);
+        }
+    }
+
+    /**
+     * Insert older rows above everything else, keeping what is on screen
+     * where it is.
+     */
+    public void prependAll(List<Row> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        int addedHeight = 0;
+        List<Row> unprepared = new ArrayList<>();
+        for (Row row : batch) {
+            if (!isPrepared(row)) {
+                unprepared.add(row);
+            }
+            measure(row);
+            addedHeight += row.height;
+        }
+        rows.addAll(0, batch);
+        rebuildTops();
+        moveView(addedHeight);
+
+        if (rows.size() - scrollbackLimit > evictionSlack()) {
+            evict(scrollbackLimit, rows.size());
+            newerEvicted = true;
+        }
+
+        revalidate();
+        repaint();
+        if (!unprepared.isEmpty()) {
+            layoutInBackground(unprepared);
+        }
+    }
+
+    private int evictionSlack() {
+        return Math.max(16, scrollbackLimit / 8);
+    }
+
+    /**
+     * Drop rows [from, to) and rebuild the prefix sums.
+     *
+     * @return the height removed
+     */
+    private int evict(int from, int to) {
+        int removed = rowTops[to] - rowTops[from];
+        rows.subList(from, to).clear();
+        rebuildTops();
+        return removed;
+    }
+
+    private void rebuildTops() {
+        if (rows.size() >= rowTops.length) {
+            rowTops = new int[Math.max(rowTops.length * 2, rows.size() + 1)];
+        }
+        totalHeight = 0;
+        maxRowWidth = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            rowTops[i] = totalHeight;
+            totalHeight += rows.get(i).height;
+            maxRowWidth = Math.max(maxRowWidth, rows.get(i).width);
+        }
+        rowTops[rows.size()] = totalHeight;
+    }
+
+    /**
+     * Shift the viewport by dy after rows above it changed height, so the
+     * rows the user is looking at stay put.
+     */
+    private void moveView(int dy) {
+        if (!(getParent() instanceof JViewport)) {
+            return;
+        }
+        JViewport viewport = (JViewport) getParent();
+        syncViewSize(viewport);
+        Point position = viewport.getViewPosition();
+        int maxY = Math.max(0, totalHeight - viewport.getExtentSize().height);
+        viewport.setViewPosition(new Point(position.x, Math.max(0, Math.min(maxY, position.y + dy))));
+    }
+
+    /**
+     * Size the view now rather than on the next layout pass, the way
+     * ViewportLayout will: as wide as the viewport, at least as tall.
+     */
+    private void syncViewSize(JViewport viewport) {
+        Dimension extent = viewport.getExtentSize();
+        viewport.setViewSize(new Dimension(extent.width, Math.max(totalHeight, extent.height)));
+    }
+
+    private void measure(Row row) {
+        renderer.configure(row);
+        Dimension size = renderer.getPreferredSize();
+        row.height = size.height + ROW_GAP;
+        row.width = size.width;
+    }
+
+    /**
+     * Index of the row containing y, by binary search over rowTops.
+     */
+    private int rowAt(int y) {
+        int low = 0;
+        int high = rows.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (rowTops[mid] <= y) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        // Colours come from the current theme at paint time, so a theme
+        // switch needs nothing but a repaint
+        g.setColor(ChatTheme.current().messageBackground);
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+        if (rows.isEmpty()) {
+            return;
+        }
+        int width = getWidth();
+        for (int i = rowAt(clip.y); i < rows.size() && rowTops[i] < clip.y + clip.height; i++) {
+            Row row = rows.get(i);
+            renderer.configure(row);
+            rendererPane.paintComponent(g, renderer, this,
+                    0, rowTops[i] + ROW_GAP, width, row.height - ROW_GAP, true);
+        }
+        rendererPane.removeAll();
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        return new Dimension(maxRowWidth, totalHeight);
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return 16;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        // Bubbles wrap to the view, so there is never anything to scroll sideways
+        return getParent() instanceof JViewport;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        Container parent = getParent();
+        return parent instanceof JViewport && parent.getHeight() > totalHeight;
+    }
+}
+
+/**
+ * The one component tree used to paint every message row: avatar, username
+ * and bubble, laid out like the per-message panels used to be.
+ */
+class MessageRowRenderer extends JPanel {
+    private final AvatarCache avatars;
+    private final RoundImageLabel profilePic = new RoundImageLabel(30);
+    private final Component pfpGap = Box.createHorizontalStrut(8);
+    private final JLabel usernameLabel = new JLabel();
+    private final RoundedLabel bubble = new RoundedLabel("", 20);
+    private final JPanel textContainer = new JPanel();
+    private UserTable users = new UserTable();
+
+    MessageRowRenderer(AvatarCache avatars) {
+        this.avatars = avatars;
+        setLayout(new BoxLayout(this, BoxLayout.X_AXIS));
+        setOpaque(false);
+
+        profilePic.setPreferredSize(new Dimension(30, 30));
+        profilePic.setMaximumSize(new Dimension(30, 30));
+        profilePic.setMinimumSize(new Dimension(30, 30));
+        add(profilePic);
+        add(pfpGap);
+
+        textContainer.setLayout(new BoxLayout(textContainer, BoxLayout.Y_AXIS));
+        textContainer.setOpaque(false);
+        textContainer.setAlignmentX(Component.LEFT_ALIGNMENT);
+
+        usernameLabel.setFont(ChatTheme.USERNAME_FONT);
+        usernameLabel.setOpaque(false);
+        usernameLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        textContainer.add(usernameLabel);
+
+        bubble.setAlignmentX(Component.LEFT_ALIGNMENT);
+        textContainer.add(bubble);
+
+        add(textContainer);
+        add(Box.createHorizontalGlue());
+    }
+
+    void setUsers(UserTable users) {
+        this.users = users;
+    }
+
+    Font bubbleFont() {
+        return bubble.getFont();
+    }
+
+    /**
+     * The text shown in a record's bubble.
+     */
+    String textFor(ChatRecord record) {
+        return record.isMessage() ? record.body : record.describe(users);
+    }
+
+    void configure(MessageListView.Row row) {
+        ChatRecord record = row.record;
+        ChatTheme theme = ChatTheme.current();
+        // Live system events (joins, renames, leaves) render as a bare bubble;
+        // history rows always show who sent them
+        boolean withSender = row.history || record.isMessage();
+        String username = row.history || record.type.equals("MSG") || record.isDirect()
+                ? record.heading(users) : null;
+
+        profilePic.setVisible(withSender);
+        pfpGap.setVisible(withSender);
+        if (withSender) {
+            profilePic.setAvatar(avatars, avatars.indexFor(users.name(record.senderId)));
+        }
+
+        usernameLabel.setText(username != null ? username : "");
+        usernameLabel.setForeground(theme.usernameForeground);
+
+        MessageLayout layout = row.layout;
+        if (layout != null) {
+            bubble.setTextLayout(layout);
+        } else {
+            // Not wrapped yet; shown on one line until the layout is ready
+            bubble.setTextLayout(null);
+            bubble.setText(textFor(record));
+        }
+
+        // The renderer is measured without being validated in between, so
+        // invalidations would stop at it; drop the BoxLayout caches directly
+        textContainer.invalidate();
+        invalidate();
+        bubble.setBackground(row.history ? theme.historyBubble : theme.liveBubble);
+    }
+}
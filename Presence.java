@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who is online, by user id, for clients that asked with WHO.
+ *
+ * A WHO gets one full snapshot; after that the subscriber only gets PRES
+ * frames listing what changed. Changes are not pushed as they happen: ids
+ * are marked dirty, and once per tick the net change for each dirty id
+ * since the last push goes out as one frame to every subscriber. A user who
+ * joins and leaves within a tick costs nothing, and a storm of thousands of
+ * joins is a few frames rather than thousands.
+ *
+ * PRES items: ADD and REN carry a USER entry (4-byte id, UTF-8 name), DEL
+ * carries the 4-byte id.
+ */
+public class Presence {
+
+    /**
+     * Where snapshots and diffs are written, such as a client connection.
+     */
+    interface Listener {
+        void send(String key, byte[] value) throws IOException;
+    }
+
+    private final Map<Integer, String> online = new ConcurrentHashMap<>();
+    private final Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+
+    // Guarded by lock: what subscribers have been told, and who they are
+    private final Object lock = new Object();
+    private final Map<Integer, String> published = new HashMap<>();
+    private final List<Listener> subscribers = new ArrayList<>();
+
+    public void online(int id, String name) {
+        online.put(id, name);
+        dirty.add(id);
+    }
+
+    public void offline(int id) {
+        online.remove(id);
+        dirty.add(id);
+    }
+
+    /**
+     * Live view of everyone online, including changes not yet pushed.
+     */
+    public Map<Integer, String> names() {
+        return online;
+    }
+
+    /**
+     * Send the listener a WHO snapshot and push it every diff from then on.
+     * The snapshot is what the other subscribers were last told, so the
+     * next diff applies to it exactly.
+     */
+    public void subscribe(Listener listener) throws Exception {
+        synchronized (lock) {
+            if (subscribers.contains(listener)) {
+                return;
+            }
+            List<KLVExample.KLVMessage> items = new ArrayList<>(published.size());
+            for (Map.Entry<Integer, String> user : published.entrySet()) {
+                items.add(new KLVExample.KLVMessage("USER", UserTable.encodeEntry(user.getKey(), user.getValue())));
+            }
+            listener.send("WHO", KLVExample.encodeKLVItems(items));
+            subscribers.add(listener);
+        }
+    }
+
+    public void unsubscribe(Listener listener) {
+        synchronized (lock) {
+            subscribers.remove(listener);
+        }
+    }
+
+    /**
+     * Push the changes since the last tick every tickMs on a daemon thread.
+     */
+    public void start(long tickMs) {
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(tickMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    flush();
+                } catch (Exception e) {
+                    System.err.println("[Presence] Flush failed: " + e.getMessage());
+                }
+            }
+        }, "presence-ticker");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    void flush() throws Exception {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        synchronized (lock) {
+            List<KLVExample.KLVMessage> items = new ArrayList<>();
+            Iterator<Integer> ids = dirty.iterator();
+            while (ids.hasNext()) {
+                int id = ids.next();
+                // Cleared before reading the state, so a change racing with
+                // this marks the id again and goes out next tick
+                ids.remove();
+                String now = online.get(id);
+                String was = published.get(id);
+                if (Objects.equals(now, was)) {
+                    continue;
+                }
+                if (now == null) {
+                    published.remove(id);
+                    items.add(new KLVExample.KLVMessage("DEL", UserTable.encodeEntry(id, "")));
+                } else {
+                    published.put(id, now);
+                    items.add(new KLVExample.KLVMessage(was == null ? "ADD" : "REN", UserTable.encodeEntry(id, now)));
+                }
+            }
+            if (items.isEmpty() || subscribers.isEmpty()) {
+                return;
+            }
+            byte[] diff = KLVExample.encodeKLVItems(items);
+            subscribers.removeIf(listener -> {
+                try {
+                    listener.send("PRES", diff);
+                    return false;
+                } catch (IOException e) {
+                    return true;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,32 @@
+import java.awt.*;
+import javax.swing.*;
+
+/**
+ * A round profile picture. The circle is baked into the cached bitmap, so
+ * painting is a single blit.
+ */
+class RoundImageLabel extends JPanel {
+    private final int size;
+    private AvatarCache avatars;
+    private int index;
+
+    public RoundImageLabel(int size) {
+        this.size = size;
+        setPreferredSize(new Dimension(size, size));
+        setOpaque(false);
+    }
+
+    public void setAvatar(AvatarCache avatars, int index) {
+        this.avatars = avatars;
+        this.index = index;
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        if (avatars == null) {
+            return;
+        }
+        g.drawImage(avatars.get(index, size, (Graphics2D) g), 0, 0, size, size, null);
+    }
+}
@@ -1,11 +1,26 @@
 import javax.swing.*;
 import javax.swing.border.AbstractBorder;
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class RoundedLabel extends JLabel {
 
+    // Diameter of the rounded corners, in user space
+    private static final int ARC = 30;
+
+    // Antialiased corner images per (colour, corner radius, display scale).
+    // A bubble is painted nine-slice style: four corner blits from the cached
+    // circle plus solid rectangles for the edges and middle, so no shape is
+    // rasterised while scrolling.
+    private static final Map<Long, BufferedImage> CORNERS = new ConcurrentHashMap<>();
+
     private int radius;
 
+    // Pre-wrapped text; when set it replaces the label's own text
+    private MessageLayout textLayout;
+
     public RoundedLabel(String text, int radius) {
         super(text);
         this.radius = radius;
@@ -17,19 +32,91 @@ public class RoundedLabel extends JLabel {
         setBorder(new RoundedEmptyBorder(radius));
     }
 
+    /**
+     * Show text wrapped ahead of time instead of the label text, so sizing
+     * the bubble needs no text measurement.
+     */
+    public void setTextLayout(MessageLayout textLayout) {
+        this.textLayout = textLayout;
+        if (textLayout != null) {
+            setText("");
+        }
+        revalidate();
+        repaint();
+    }
+
     @Override
-    protected void paintComponent(Graphics g) {
-        Graphics2D g2 = (Graphics2D) g.create();
-        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    public Dimension getPreferredSize() {
+        if (textLayout == null) {
+            return super.getPreferredSize();
+        }
+        Insets insets = getInsets();
+        return new Dimension(textLayout.width + insets.left + insets.right,
+                textLayout.height + insets.top + insets.bottom);
+    }
 
-        // Background bubble
-        g2.setColor(getBackground());
-        g2.fillRoundRect(0, 0, getWidth(), getHeight(), 30, 30);
+    @Override
+    public Dimension getMaximumSize() {
+        return textLayout == null ? super.getMaximumSize() : getPreferredSize();
+    }
 
-        g2.dispose();
+    @Override
+    protected void paintComponent(Graphics g) {
+        paintBubble((Graphics2D) g, getBackground(), getWidth(), getHeight());
+        if (textLayout != null) {
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g2.setColor(getForeground());
+            Insets insets = getInsets();
+            textLayout.draw(g2, insets.left, insets.top);
+            g2.dispose();
+            return;
+        }
         super.paintComponent(g); // draw text on top
     }
 
+    static void paintBubble(Graphics2D g, Color color, int w, int h) {
+        int r = ARC / 2;
+        if (w < ARC || h < ARC) {
+            // Too small to slice; rare enough to just draw the shape
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2.setColor(color);
+            g2.fillRoundRect(0, 0, w, h, ARC, ARC);
+            g2.dispose();
+            return;
+        }
+
+        double scale = Math.max(1.0, g.getTransform().getScaleX());
+        BufferedImage corners = corners(color, r, scale, g.getDeviceConfiguration());
+        int p = corners.getWidth() / 2;
+        g.drawImage(corners, 0, 0, r, r, 0, 0, p, p, null);
+        g.drawImage(corners, w - r, 0, w, r, p, 0, 2 * p, p, null);
+        g.drawImage(corners, 0, h - r, r, h, 0, p, p, 2 * p, null);
+        g.drawImage(corners, w - r, h - r, w, h, p, p, 2 * p, 2 * p, null);
+
+        g.setColor(color);
+        g.fillRect(r, 0, w - 2 * r, h);
+        g.fillRect(0, r, r, h - 2 * r);
+        g.fillRect(w - r, r, r, h - 2 * r);
+    }
+
+    private static BufferedImage corners(Color color, int r, double scale, GraphicsConfiguration gc) {
+        long key = ((long) color.getRGB() << 32) | ((long) r << 16) | Math.round(scale * 100);
+        return CORNERS.computeIfAbsent(key, k -> {
+            int pixels = 2 * (int) Math.ceil(r * scale);
+            BufferedImage image = gc != null
+                    ? gc.createCompatibleImage(pixels, pixels, Transparency.TRANSLUCENT)
+                    : new BufferedImage(pixels, pixels, BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D g2 = image.createGraphics();
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2.setColor(color);
+            g2.fillOval(0, 0, pixels, pixels);
+            g2.dispose();
+            return image;
+        });
+    }
+
     // --- Inner class for the empty-rounded border (just insets) ---
     private static class RoundedEmptyBorder extends AbstractBorder {
         private final int radius;
@@ -0,0 +1,99 @@
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Times SearchIndex over a synthetic corpus against scanning every message.
+ *
+ * Usage: java SearchBenchmark [messages]   (default 1,000,000)
+ *
+ * Words are drawn from a Zipf-like vocabulary, so a few are in most
+ * messages and most are rare, roughly like real chat. Each query runs
+ * several times after a warm-up and the median is reported.
+ */
+public class SearchBenchmark {
+
+    private static final int VOCABULARY = 50_000;
+    private static final int RUNS = 9;
+
+    public static void main(String[] args) {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Random random = new Random(42);
+        String[] words = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++) {
+            words[i] = "w" + Integer.toString(i, 36);
+        }
+
+        String[] corpus = new String[messages];
+        SearchIndex index = new SearchIndex();
+        long started = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            StringBuilder text = new StringBuilder();
+            int length = 3 + random.nextInt(15);
+            for (int w = 0; w < length; w++) {
+                // Inverse-power pick: low ranks are common, high ranks rare
+                int rank = (int) Math.min(VOCABULARY - 1, Math.pow(VOCABULARY, random.nextDouble()) - 1);
+                text.append(words[rank]).append(w % 5 == 4 ? ". " : " ");
+            }
+            corpus[i] = text.toString();
+            index.add(i + 1, corpus[i]);
+        }
+        long indexNanos = System.nanoTime() - started;
+        System.out.printf("Indexed %,d messages in %,d ms (%.2f us each)%n", messages,
+            indexNanos / 1_000_000, indexNanos / 1000.0 / messages);
+        System.out.printf("%,d terms, %,d bytes of postings (%.2f bytes per message)%n",
+            index.termCount(), index.postingBytes(), index.postingBytes() / (double) messages);
+
+        String[] queries = {
+            words[0],                       // in most messages
+            words[20],                      // common
+            words[2000],                    // uncommon
+            words[40_000],                  // rare
+            words[20] + " " + words[2000],  // mixed
+            words[2000] + " " + words[40_000] + " " + words[45_000],
+        };
+        System.out.printf("%n%-28s %10s %12s %12s%n", "query", "matches", "index ms", "scan ms");
+        for (String query : queries) {
+            SearchIndex.Result result = index.search(query, 0, 20);
+            double indexMs = median(() -> index.search(query, 0, 20));
+            double scanMs = median(() -> scan(corpus, query));
+            System.out.printf("%-28s %,10d %12.3f %12.3f%n", query, result.total, indexMs, scanMs);
+        }
+
+        double pagedMs = median(() -> index.search(words[20], 200, 20));
+        System.out.printf("%nPage 11 of \"%s\": %.3f ms%n", words[20], pagedMs);
+
+        started = System.nanoTime();
+        index.retainFrom(messages / 2);
+        System.out.printf("Dropped the oldest half in %,d ms, %,d bytes of postings left%n",
+            (System.nanoTime() - started) / 1_000_000, index.postingBytes());
+    }
+
+    /**
+     * The baseline: tokenize every message and count those sharing a term.
+     */
+    private static int scan(String[] corpus, String query) {
+        Set<String> terms = SearchIndex.tokenize(query, 8);
+        int matches = 0;
+        for (String text : corpus) {
+            for (String term : SearchIndex.tokenize(text, 256)) {
+                if (terms.contains(term)) {
+                    matches++;
+                    break;
+                }
+            }
+        }
+        return matches;
+    }
+
+    private static double median(Runnable task) {
+        task.run();
+        long[] nanos = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long started = System.nanoTime();
+            task.run();
+            nanos[i] = System.nanoTime() - started;
+        }
+        java.util.Arrays.sort(nanos);
+        return nanos[RUNS / 2] / 1_000_000.0;
+    }
+}
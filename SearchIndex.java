@@ -0,0 +1,327 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over message text: each term maps to the ascending seqs of
+ * the messages that contain it.
+ *
+ * Seqs only ever grow, so a posting list is stored as varint deltas from the
+ * previous seq, appended in place; most deltas fit in one or two bytes.
+ * Adding a message touches only its own terms' lists, and a search decodes
+ * only the lists of the query's terms, never the messages themselves.
+ *
+ * Results are ranked by the summed IDF of the query terms a message
+ * contains, so rare words count for more than common ones, then newest
+ * first. Only offset + limit hits are kept while merging.
+ */
+public class SearchIndex {
+
+    private static final int MAX_TERM_LENGTH = 40;
+    private static final int MAX_TERMS_PER_MESSAGE = 256;
+    private static final int MAX_QUERY_TERMS = 8;
+
+    private final Map<String, Postings> terms = new HashMap<>();
+    // Every indexed seq still retained, whatever its terms; its count is the
+    // corpus size for IDF
+    private final Postings documents = new Postings();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Index a message. The server adds seqs in increasing order; one that
+     * arrives out of order anyway is slotted in at the cost of rewriting the
+     * lists it touches.
+     */
+    public void add(long seq, String text) {
+        Set<String> tokens = tokenize(text, MAX_TERMS_PER_MESSAGE);
+        if (tokens.isEmpty()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            documents.add(seq);
+            for (String token : tokens) {
+                terms.computeIfAbsent(token, t -> new Postings()).add(seq);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drop every posting below minSeq, e.g. for messages history has evicted.
+     * Rewrites the lists, so call it once per batch of evictions.
+     */
+    public void retainFrom(long minSeq) {
+        lock.writeLock().lock();
+        try {
+            Iterator<Postings> lists = terms.values().iterator();
+            while (lists.hasNext()) {
+                Postings postings = lists.next();
+                if (!postings.retainFrom(minSeq)) {
+                    lists.remove();
+                }
+            }
+            documents.retainFrom(minSeq);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Result search(String query, int offset, int limit) {
+        Set<String> queryTerms = tokenize(query, MAX_QUERY_TERMS);
+        int wanted = Math.max(0, offset) + Math.max(0, limit);
+        if (queryTerms.isEmpty() || wanted == 0) {
+            return new Result(0, new long[0]);
+        }
+
+        lock.readLock().lock();
+        try {
+            List<Postings.Cursor> cursors = new ArrayList<>(queryTerms.size());
+            for (String term : queryTerms) {
+                Postings postings = terms.get(term);
+                if (postings != null) {
+                    cursors.add(postings.cursor(Math.log(1 + (double) documents.count / postings.count)));
+                }
+            }
+
+            // Merge the lists in seq order; each seq seen sums the IDF of its terms
+            PriorityQueue<Hit> best = new PriorityQueue<>(wanted + 1);
+            int total = 0;
+            while (true) {
+                long seq = Long.MAX_VALUE;
+                for (Postings.Cursor cursor : cursors) {
+                    if (cursor.hasCurrent() && cursor.current < seq) {
+                        seq = cursor.current;
+                    }
+                }
+                if (seq == Long.MAX_VALUE) {
+                    break;
+                }
+                double score = 0;
+                for (Postings.Cursor cursor : cursors) {
+                    if (cursor.hasCurrent() && cursor.current == seq) {
+                        score += cursor.idf;
+                        cursor.advance();
+                    }
+                }
+                total++;
+                if (best.size() < wanted) {
+                    best.add(new Hit(score, seq));
+                } else if (score >= best.peek().score) {
+                    // Later seqs are newer, so an equal score displaces the older hit
+                    best.poll();
+                    best.add(new Hit(score, seq));
+                }
+            }
+
+            List<Hit> ranked = new ArrayList<>(best);
+            ranked.sort((a, b) -> b.compareTo(a));
+            int from = Math.min(offset, ranked.size());
+            long[] seqs = new long[ranked.size() - from];
+            for (int i = 0; i < seqs.length; i++) {
+                seqs[i] = ranked.get(from + i).seq;
+            }
+            return new Result(total, seqs);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Size of the posting lists in bytes, for reporting.
+     */
+    public long postingBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (Postings postings : terms.values()) {
+                bytes += postings.size;
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int termCount() {
+        lock.readLock().lock();
+        try {
+            return terms.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lower-cased runs of letters and digits, each once, in order.
+     */
+    static Set<String> tokenize(String text, int maxTerms) {
+        Set<String> tokens = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length() && tokens.size() < maxTerms; i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * A page of hits, best first, and how many messages matched in all.
+     */
+    public static final class Result {
+        public final int total;
+        public final long[] seqs;
+
+        Result(int total, long[] seqs) {
+            this.total = total;
+            this.seqs = seqs;
+        }
+    }
+
+    private static final class Hit implements Comparable<Hit> {
+        final double score;
+        final long seq;
+
+        Hit(double score, long seq) {
+            this.score = score;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Hit other) {
+            int byScore = Double.compare(score, other.score);
+            return byScore != 0 ? byScore : Long.compare(seq, other.seq);
+        }
+    }
+
+    /**
+     * One term's seqs as varint deltas.
+     */
+    private static final class Postings {
+        byte[] data = new byte[8];
+        int size = 0;
+        int count = 0;
+        long last = 0;
+
+        void add(long seq) {
+            if (count > 0 && seq <= last) {
+                insert(seq);
+                return;
+            }
+            if (size + 10 > data.length) {
+                byte[] grown = new byte[data.length * 2];
+                System.arraycopy(data, 0, grown, 0, size);
+                data = grown;
+            }
+            long delta = seq - last;
+            while ((delta & ~0x7FL) != 0) {
+                data[size++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[size++] = (byte) delta;
+            last = seq;
+            count++;
+        }
+
+        private void insert(long seq) {
+            Postings merged = new Postings();
+            Cursor cursor = cursor(0);
+            while (cursor.hasCurrent() && cursor.current < seq) {
+                merged.add(cursor.current);
+                cursor.advance();
+            }
+            if (!cursor.hasCurrent() || cursor.current != seq) {
+                merged.add(seq);
+            }
+            while (cursor.hasCurrent()) {
+                merged.add(cursor.current);
+                cursor.advance();
+            }
+            replaceWith(merged);
+        }
+
+        private void replaceWith(Postings other) {
+            data = other.data;
+            size = other.size;
+            count = other.count;
+            last = other.last;
+        }
+
+        /**
+         * @return false if nothing is left
+         */
+        boolean retainFrom(long minSeq) {
+            Cursor cursor = cursor(0);
+            while (cursor.hasCurrent() && cursor.current < minSeq) {
+                cursor.advance();
+            }
+            Postings kept = new Postings();
+            while (cursor.hasCurrent()) {
+                kept.add(cursor.current);
+                cursor.advance();
+            }
+            replaceWith(kept);
+            return count > 0;
+        }
+
+        Cursor cursor(double idf) {
+            return new Cursor(data, size, idf);
+        }
+
+        /**
+         * Decodes a list as it stood when the cursor was made.
+         */
+        static final class Cursor {
+            private final byte[] data;
+            private final int size;
+            final double idf;
+            private int position = 0;
+            private boolean valid;
+            long current = 0;
+
+            Cursor(byte[] data, int size, double idf) {
+                this.data = data;
+                this.size = size;
+                this.idf = idf;
+                advance();
+            }
+
+            boolean hasCurrent() {
+                return valid;
+            }
+
+            void advance() {
+                if (position >= size) {
+                    valid = false;
+                    return;
+                }
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                current += delta;
+                valid = true;
+            }
+        }
+    }
+}
@@ -6,9 +6,21 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Server {
 
@@ -17,13 +29,128 @@ public class Server {
     private ServerSocket serverSocket;
     private volatile boolean running;
     private final AtomicInteger clientCount = new AtomicInteger(0);
-    private static final List<OutputStream> outputStreamList = new ArrayList<>();
+    private static final List<ClientHandler> clientList = new ArrayList<>();
+    // Seqs start again at 1 whenever the server does; this tells clients
+    // which run a seq belongs to
+    private static final long EPOCH = System.currentTimeMillis();
     
-    private static final Queue<String> messageHistory = new ArrayDeque<>();
+    // Live users by id. Names go out once, in JOIN/NAME events and the NAMS
+    // snapshot a client gets on joining; everything else refers to the id.
+    // Clients that sent WHO also get coalesced PRES diffs every tick.
+    private static final Presence presence = new Presence();
+    private static final long PRESENCE_TICK_MS = Long.getLong("chat.presenceTick", 500);
+
+    // Typing indicators: latest state per sender, pushed once per tick to
+    // everyone who has joined, never stored and never acknowledged
+    private static final EphemeralEvents typing = new EphemeralEvents("TYPN", Server::joinedClients);
+    private static final long TYPING_TICK_MS = Long.getLong("chat.typingTick", 300);
+
+    // Retained history, oldest first and ordered by seq. A plain READ returns
+    // the last MAX_HISTORY_SIZE; older pages are fetched with BFOR/AFTR.
+    private static final Deque<HistoryEntry> messageHistory = new ArrayDeque<>();
     private static final int MAX_HISTORY_SIZE = 20;
+    private static final int HISTORY_CAPACITY = Math.max(MAX_HISTORY_SIZE,
+        Integer.getInteger("chat.historyCapacity", 1000));
     private static final Object historyLock = new Object();
+    // Room messages by seq for search results, under historyLock. The index
+    // itself has its own lock and is trimmed to retained history once per
+    // HISTORY_CAPACITY evictions rather than on every one, so until then it
+    // still holds up to that many evicted messages.
+    private static final Map<Long, HistoryEntry> historyBySeq = new HashMap<>();
+    private static final SearchIndex searchIndex = new SearchIndex();
+    private static final int MAX_SEARCH_RESULTS = 50;
+    private static int evictedSinceTrim = 0;
+    // Direct messages never touch the room: they go to the recipient's
+    // connection, found by id (or name) in O(1), and are kept per
+    // conversation under historyLock. Connection ids change on every
+    // reconnect, so conversations are keyed by the two user names
+    // (conversationKey); the least recently used are dropped past
+    // MAX_CONVERSATIONS.
+    private static final Map<Integer, ClientHandler> connections = new ConcurrentHashMap<>();
+    private static final Map<String, Integer> idsByName = new ConcurrentHashMap<>();
+    private static final int DM_HISTORY_CAPACITY = Integer.getInteger("chat.dmHistory", 200);
+    private static final int MAX_CONVERSATIONS = Integer.getInteger("chat.dmConversations", 1000);
+    private static final Map<String, Deque<HistoryEntry>> conversations =
+        new LinkedHashMap<String, Deque<HistoryEntry>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Deque<HistoryEntry>> eldest) {
+                return size() > MAX_CONVERSATIONS;
+            }
+        };
+    private static final AtomicLong nextSeq = new AtomicLong(0);
     private static int numOfClients = 0;
 
+    // Admission control. After a restart every client reconnects at once;
+    // connections over the cap or the accept rate are turned away with a
+    // BUSY frame before they cost a thread, and told when to come back.
+    private static final int BACKLOG = Integer.getInteger("chat.backlog", 256);
+    private static final int MAX_CONNECTIONS = Integer.getInteger("chat.maxConnections", 1000);
+    private static final long MIN_RETRY_AFTER_MS = 1000;
+    private final TokenBucket acceptBucket = new TokenBucket(
+        Integer.getInteger("chat.acceptRate", 100), Integer.getInteger("chat.acceptBurst", 200));
+    private final AtomicInteger activeConnections = new AtomicInteger(0);
+
+    // Per-connection flood control, checked before a frame is processed
+    private static final int FRAME_RATE = Integer.getInteger("chat.frameRate", 20);
+    private static final int FRAME_BURST = Integer.getInteger("chat.frameBurst", 40);
+    private static final int BYTE_RATE = Integer.getInteger("chat.byteRate", 64 * 1024);
+    private static final int BYTE_BURST = Integer.getInteger("chat.byteBurst", 256 * 1024);
+    // Rate-limited frames in a row before the client is dropped as a flooder
+    private static final int FLOOD_DISCONNECT = Integer.getInteger("chat.floodDisconnect", 200);
+
+    // Frame size limits, checked against the length before anything is
+    // allocated. A frame over its limit but under MAX_SKIP is read past and
+    // answered with RESP 413; anything bigger ends the connection.
+    private static final int MAX_MESSAGE = Integer.getInteger("chat.maxMessage", 16 * 1024);
+    private static final int MAX_NAME = 256;
+    private static final int MAX_SKIP = Integer.getInteger("chat.maxSkip", 1 << 20);
+    // Longest request id looked for at the head of an oversize MSG (an int)
+    private static final int MAX_REQUEST_ID_LENGTH = 10;
+
+    // Heartbeats. A connection that has sent nothing for PING_INTERVAL is
+    // sent a PING, which a live client answers with PONG; one silent for
+    // IDLE_TIMEOUT is closed, which frees its handler thread.
+    private static final long PING_INTERVAL_MS = Long.getLong("chat.pingInterval", 15000);
+    private static final long IDLE_TIMEOUT_MS = Long.getLong("chat.idleTimeout", 45000);
+    private static final HashedWheelTimer heartbeats = new HashedWheelTimer(
+        "heartbeat-timer", 250, TimeUnit.MILLISECONDS, 512);
+    // Submitting a PING blocks if its writer shard's queue is full, so
+    // they are submitted off the timer thread
+    private static final ExecutorService pingSender = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "heartbeat-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final byte[] EMPTY = new byte[0];
+
+    // Drain on stop(): every client is sent SHUT with its own reconnect
+    // delay around DRAIN_RECONNECT_MS, so they do not all come back at
+    // once, and the whole drain is bounded by DRAIN_TIMEOUT_MS
+    private static final long DRAIN_TIMEOUT_MS = Long.getLong("chat.drainTimeout", 5000);
+    private static final long DRAIN_RECONNECT_MS = Long.getLong("chat.drainReconnect", 2000);
+    private final Set<ClientHandler> handlers = ConcurrentHashMap.newKeySet();
+    private volatile boolean draining = false;
+    private final AtomicInteger refusedWhileDraining = new AtomicInteger(0);
+
+    // Arrays for reading and writing frames; see BufferPool
+    static final BufferPool buffers = new BufferPool();
+    // Every write goes through a writer thread that owns the connection's
+    // shard (id % chat.writers), so broadcasts fan out across cores and each
+    // connection still gets its frames in the order they were sent
+    private static final int WRITER_THREADS = Integer.getInteger("chat.writers",
+        Runtime.getRuntime().availableProcessors());
+    private static final int WRITER_QUEUE = Integer.getInteger("chat.writerQueue", 65536);
+    private static final long WRITE_TIMEOUT_MS = Long.getLong("chat.writeTimeout", 10000);
+    // Past this many items waiting in its shard, a connection misses ephemeral events
+    private static final int EPHEMERAL_BACKLOG = 256;
+    static final WriterPool writers = new WriterPool(buffers, WRITER_THREADS, WRITER_QUEUE, WRITE_TIMEOUT_MS);
+    // RESP values without a request id, which are most of them
+    private static final Map<Integer, byte[]> statusBytes = new ConcurrentHashMap<>();
+
+    // READ walks and re-encodes history, so all clients share a budget for it
+    private static final TokenBucket readBucket = new TokenBucket(
+        Integer.getInteger("chat.readRate", 50), Integer.getInteger("chat.readBurst", 100));
+
     public Server(String host, int port) {
         this.host = host;
         this.port = port;
@@ -31,8 +158,11 @@ public class Server {
     }
 
     public void start() throws IOException {
-        serverSocket = new ServerSocket(port);
+        serverSocket = new ServerSocket(port, BACKLOG);
         running = true;
+        ServerMetrics.startReporter();
+        presence.start(PRESENCE_TICK_MS);
+        typing.start(TYPING_TICK_MS);
 
         System.out.println("=".repeat(70));
         System.out.println("Java KLV Example Server");
@@ -42,8 +172,12 @@ public class Server {
         System.out.println("\nSupported commands:");
         System.out.println("  NAME:length:name   - send back new username  ");
         System.out.println("  MSG:length:text    - Send back text");
-        System.out.println("  READ:length:text   - send back messages");
+        System.out.println("  READ:length:fields - send back messages (optional AFTR/BFOR, CNT, WNAM/WITH;");
+        System.out.println("                       anything else reads the latest page)");
         System.out.println("  TIME:0:            - Get server time");
+        System.out.println("  WHO:0:             - Who is online, then PRES updates");
+        System.out.println("  DM:length:fields   - Private message to one user (TO/TONM, BODY)");
+        System.out.println("  SRCH:length:fields - Search history (QURY, optional OFFS/CNT)");
         System.out.println("  QUIT:0:            - Disconnect");
         System.out.println("\nPress Ctrl+C to stop.");
         System.out.println("=".repeat(70));
@@ -51,14 +185,29 @@ public class Server {
         while (running) {
             try {
                 Socket clientSocket = serverSocket.accept();
+                if (!running) {
+                    // Accepted just as stop() began
+                    reject(clientSocket, retryAfter(DRAIN_RECONNECT_MS));
+                    continue;
+                }
+                long retryAfter = admit();
+                if (retryAfter > 0) {
+                    ServerMetrics.connectionsRejected.increment();
+                    reject(clientSocket, retryAfter);
+                    continue;
+                }
+                ServerMetrics.connectionsAccepted.increment();
                 int clientId = clientCount.incrementAndGet();
 
                 InetSocketAddress address = (InetSocketAddress) clientSocket.getRemoteSocketAddress();
                 System.out.println("\n[Client " + clientId + "] Connected from " + address);
 
                 numOfClients++;
-                Thread clientThread = new Thread(new ClientHandler(clientSocket, clientId));
+                ClientHandler handler = new ClientHandler(clientSocket, clientId);
+                Thread clientThread = new Thread(handler);
                 clientThread.setDaemon(true);
+                handler.thread = clientThread;
+                handlers.add(handler);
                 clientThread.start();
 
 
@@ -70,8 +219,70 @@ public class Server {
         }
     }
 
+    /**
+     * Decide whether to take a new connection, and count it if so.
+     *
+     * @return 0 to admit, otherwise how many milliseconds the client should
+     *         wait before trying again
+     */
+    private long admit() {
+        if (activeConnections.get() >= MAX_CONNECTIONS) {
+            return retryAfter(MIN_RETRY_AFTER_MS);
+        }
+        if (!acceptBucket.tryAcquire()) {
+            return retryAfter(acceptBucket.millisUntilAvailable(1));
+        }
+        activeConnections.incrementAndGet();
+        return 0;
+    }
+
+    /**
+     * Spread rejected clients over a window so they do not all come back
+     * in the same instant.
+     */
+    private static long retryAfter(long wait) {
+        long base = Math.max(MIN_RETRY_AFTER_MS, wait);
+        return base + ThreadLocalRandom.current().nextLong(2 * base);
+    }
+
+    /**
+     * Send BUSY:<retry after ms> and hang up. BUSY has no compact code, so it
+     * is always classic framing, which every client can read.
+     */
+    private void reject(Socket clientSocket, long retryAfterMs) {
+        System.out.println("[Server] Busy (" + activeConnections.get() + " connections), rejecting "
+            + clientSocket.getRemoteSocketAddress() + ", retry after " + retryAfterMs + " ms");
+        try {
+            OutputStream out = clientSocket.getOutputStream();
+            out.write(KLVCodec.encode(KLVCodec.Framing.CLASSIC, "BUSY",
+                String.valueOf(retryAfterMs).getBytes(StandardCharsets.US_ASCII)));
+            out.flush();
+            clientSocket.shutdownOutput();
+        } catch (IOException e) {
+            // It is going away either way
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Drain and stop. New connections are refused, every client gets a SHUT
+     * frame telling it when to reconnect, and handlers are given until the
+     * drain deadline to finish the frame they are on and see their client
+     * hang up. Whatever is still open at the deadline is closed, and what
+     * could not be delivered is reported.
+     */
     public void stop() {
+        if (draining) {
+            return;
+        }
+        long started = System.nanoTime();
+        long deadline = started + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MS);
         running = false;
+        draining = true;
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
@@ -79,202 +290,901 @@ public class Server {
         } catch (IOException e) {
             System.err.println("Error closing server: " + e.getMessage());
         }
+
+        long failuresBefore = ServerMetrics.broadcastFailures.sum();
+        List<ClientHandler> open = new ArrayList<>(handlers);
+        System.out.println("[Server] Draining " + open.size() + " connection(s)");
+
+        // Only queued here; the writer threads send them in parallel, and a
+        // peer that stopped reading holds up nobody past the write timeout
+        int notified = 0;
+        for (ClientHandler handler : open) {
+            try {
+                handler.shutdownNotice(retryAfter(DRAIN_RECONNECT_MS));
+                notified++;
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+
+        // Clients hang up on their own once they read SHUT
+        for (ClientHandler handler : open) {
+            try {
+                handler.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int forced = 0;
+        for (ClientHandler handler : handlers) {
+            handler.close();
+            forced++;
+        }
+        heartbeats.stop();
+        try {
+            writers.stop(Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int historySize;
+        synchronized (historyLock) {
+            historySize = messageHistory.size();
+        }
+        System.out.println("[Server] Drained in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms: "
+            + notified + "/" + open.size() + " notified, "
+            + (open.size() - forced) + " left on their own, "
+            + forced + " closed at the deadline, "
+            + refusedWhileDraining.get() + " command(s) refused, "
+            + (ServerMetrics.broadcastFailures.sum() - failuresBefore) + " broadcast(s) not delivered, "
+            + historySize + " history message(s) dropped (history is memory only)");
         System.out.println("Server stopped.");
     }
 
-    private static void addToHistory(String message) {
+    /**
+     * @param text the message body, indexed for search as it is rather
+     *             than decoded again from the record
+     */
+    private static void addToHistory(HistoryEntry message, String text) {
+        long trimFrom = -1;
         synchronized (historyLock) {
             messageHistory.add(message);
-            if (messageHistory.size() > MAX_HISTORY_SIZE) {
-                messageHistory.remove();
+            historyBySeq.put(message.seq, message);
+            if (messageHistory.size() > HISTORY_CAPACITY) {
+                historyBySeq.remove(messageHistory.remove().seq);
+                if (++evictedSinceTrim >= HISTORY_CAPACITY) {
+                    evictedSinceTrim = 0;
+                    trimFrom = messageHistory.peekFirst().seq;
+                }
+            }
+        }
+        searchIndex.add(message.seq, text);
+        if (trimFrom >= 0) {
+            searchIndex.retainFrom(trimFrom);
+        }
+    }
+
+    /**
+     * Ranked search over retained room history. Hits the index still holds
+     * for messages already evicted are skipped, so a page can come back short,
+     * and total is approximate: it counts them too.
+     */
+    private static List<HistoryEntry> search(String query, int offset, int count, int[] total) {
+        SearchIndex.Result hits = searchIndex.search(query, offset, count);
+        total[0] = hits.total;
+        List<HistoryEntry> page = new ArrayList<>(hits.seqs.length);
+        synchronized (historyLock) {
+            for (long seq : hits.seqs) {
+                HistoryEntry entry = historyBySeq.get(seq);
+                if (entry != null) {
+                    page.add(entry);
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * The same key for both directions of a conversation between two names.
+     */
+    private static String conversationKey(String a, String b) {
+        return a.compareTo(b) <= 0 ? a + '\0' + b : b + '\0' + a;
+    }
+
+    private static void addToConversation(String a, String b, HistoryEntry message) {
+        synchronized (historyLock) {
+            Deque<HistoryEntry> conversation = conversations.computeIfAbsent(
+                conversationKey(a, b), key -> new ArrayDeque<>());
+            conversation.add(message);
+            if (conversation.size() > DM_HISTORY_CAPACITY) {
+                conversation.remove();
             }
         }
     }
     
-    private static List<String> getHistory() {
+    /**
+     * Page through history, oldest first.
+     *
+     * @param after  only entries with seq > after; when set (>= 0) the page
+     *               starts right after it, otherwise it ends right before {@code before}
+     * @param before only entries with seq < before
+     * @param count  maximum number of entries
+     */
+    private static List<HistoryEntry> getHistory(long after, long before, int count) {
+        return getHistory(messageHistory, after, before, count);
+    }
+
+    /**
+     * Page through one conversation's direct messages, like {@link #getHistory}.
+     */
+    private static List<HistoryEntry> getConversation(String a, String b, long after, long before, int count) {
+        synchronized (historyLock) {
+            Deque<HistoryEntry> conversation = conversations.get(conversationKey(a, b));
+            return conversation == null ? new ArrayList<>() : getHistory(conversation, after, before, count);
+        }
+    }
+
+    private static List<HistoryEntry> getHistory(Deque<HistoryEntry> source, long after, long before, int count) {
+        List<HistoryEntry> page = new ArrayList<>(Math.min(count, MAX_HISTORY_SIZE));
         synchronized (historyLock) {
-            return new ArrayList<>(messageHistory);
+            if (after >= 0) {
+                for (HistoryEntry entry : source) {
+                    if (page.size() == count || entry.seq >= before) {
+                        break;
+                    }
+                    if (entry.seq > after) {
+                        page.add(entry);
+                    }
+                }
+                return page;
+            }
+            Iterator<HistoryEntry> newestFirst = source.descendingIterator();
+            while (newestFirst.hasNext() && page.size() < count) {
+                HistoryEntry entry = newestFirst.next();
+                if (entry.seq < before) {
+                    page.add(entry);
+                }
+            }
         }
+        Collections.reverse(page);
+        return page;
     }
     
-    private class ClientHandler implements Runnable {
+    private class ClientHandler implements Runnable, Presence.Listener, EphemeralEvents.Recipient,
+            WriterPool.Connection {
         private final Socket socket;
         private final int clientId;
+        private final KLVCodec codec = KLVCodec.mirroring();
+        // Written to only by the connection's writer shard
+        private OutputStream output;
+        // When the start of the last frame arrived; read by the heartbeat timer
+        private volatile long lastReadNanos = System.nanoTime();
+        private volatile HashedWheelTimer.Timeout heartbeat;
+        volatile Thread thread;
+        // Set under this handler's monitor once SHUT is queued; nothing may follow it
+        private boolean shutdownSent = false;
+        private boolean subscribed = false;
         private String username = "user" + numOfClients;
+        // Set by OPTS implicit-ack: successful commands are acknowledged by their echo
+        private boolean implicitAck = false;
+        // Only touched by this handler's thread; plain fields, nothing allocated per frame
+        private final TokenBucket frameBucket = new TokenBucket(FRAME_RATE, FRAME_BURST);
+        private final TokenBucket byteBucket = new TokenBucket(BYTE_RATE, BYTE_BURST);
+        private int limitedInARow = 0;
 
         public ClientHandler(Socket socket, int clientId) {
             this.socket = socket;
             this.clientId = clientId;
+            // Room for the RQID and BODY headers of an implicit-ack MSG
+            codec.setMaxLength("MSG", MAX_MESSAGE + 64);
+            codec.setMaxLength("DM", MAX_MESSAGE + 64 + MAX_NAME);
+            codec.setMaxLength("JOIN", MAX_NAME);
+            codec.setMaxLength("NAME", MAX_NAME);
+            // Room for a WNAM name plus the headers of it and the paging fields
+            codec.setMaxLength("READ", MAX_NAME + 64);
+            // Commands that carry at most a few small fields
+            for (String key : new String[] {"OPTS", "TIME", "QUIT", "PING", "PONG", "WHO", "TYPN"}) {
+                codec.setMaxLength(key, 256);
+            }
+            codec.setMaxLength("SRCH", 1024);
         }
 
         @Override
         public void run() {
-            OutputStream output = null;
             try {
                 InputStream input = socket.getInputStream();
                 output = socket.getOutputStream();
-                synchronized (outputStreamList) {
-                    outputStreamList.add(output);
-                }
-
-                while (running && !socket.isClosed()) {
-                    KLVMessage message = readKLVFromSocket(input);
-                    if (message == null) {
-                        break;
-                    }
+                scheduleHeartbeat(PING_INTERVAL_MS);
 
-                    String valueStr = new String(message.value, StandardCharsets.UTF_8);
-                    
-                    System.out.println("[Client " + clientId + "] Received: " +
-                        message.key + ":" + message.value.length + ":" + valueStr);
-
-                    ResponseResult result = processCommand(message.key, message.value);
-                    if (result == null || result.response == null) {
+                // Runs until the client leaves or the socket is closed, also
+                // while draining, so a frame is never cut off half handled
+                while (!socket.isClosed()) {
+                    KLVCodec.Header header = codec.readHeader(input);
+                    if (header == null) {
                         break;
                     }
-
-                    // Send RESP message directly to the sender
-                    String statusCodeStr = String.valueOf(result.statusCode);
-                    byte[] respMessage = KLVExample.encodeKLV("RESP", statusCodeStr.getBytes(StandardCharsets.UTF_8));
-                    output.write(respMessage);
-                    output.flush();
-                    System.out.println("[Client " + clientId + "] Sent RESP: " + result.statusCode);
-
-                    // Only process and broadcast if status is successful (200)
-                    if (result.statusCode == 200 && result.response != null) {
-                        System.out.println("[DEBUG] Raw bytes sent: " + Server.bytesToHex(result.response));
-
-                        if (message.key.equals("MSG")) {
-                            KLVExample.KLVMessage respMsg = KLVExample.decodeKLV(result.response);
-                            String responseValue = new String(respMsg.value, StandardCharsets.UTF_8);
-                            addToHistory(responseValue);
-                        }
-
-                        if (message.key.equals("READ")) {
-                            output.write(result.response);
-                            output.flush();
-                        } else {
-                            broadCastResponse(result.response);
+                    lastReadNanos = System.nanoTime();
+                    if (header.length > codec.maxLength(header.key)) {
+                        if (!refuseTooLarge(input, header)) {
+                            break;
                         }
+                        continue;
                     }
 
-                    if (message.key.equals("QUIT")) {
-                        break;
+                    // The value is only needed until the command is handled;
+                    // anything kept (history, broadcasts) is encoded afresh
+                    byte[] value = buffers.acquire(header.length);
+                    try {
+                        if (!codec.readValue(input, header, value) || !handleFrame(header.key, value, header.length)) {
+                            break;
+                        }
+                    } finally {
+                        buffers.release(value);
                     }
                 }
 
             } catch (Exception e) {
                 System.err.println("[Client " + clientId + "] Error: " + e.getMessage());
             } finally {
-                if (output != null) {
-                    synchronized (outputStreamList) {
-                        outputStreamList.remove(output);
+                synchronized (clientList) {
+                    clientList.remove(this);
+                }
+                presence.unsubscribe(this);
+                presence.offline(clientId);
+                connections.remove(clientId);
+                idsByName.remove(username, clientId);
+                if (subscribed) {
+                    // Clear any typing indicator left showing
+                    typing.post(clientId, new byte[] {0});
+                }
+                activeConnections.decrementAndGet();
+                handlers.remove(this);
+                if (heartbeat != null) {
+                    heartbeat.cancel();
+                }
+                // After whatever is still queued for it, such as the reply to QUIT
+                writers.close(this);
+                System.out.println("[Client " + clientId + "] Disconnected");
+            }
+        }
+
+        /**
+         * Handle one frame whose value is the first {@code length} bytes of
+         * {@code value}.
+         *
+         * @return false if the connection should be closed
+         */
+        private boolean handleFrame(String key, byte[] value, int length) throws Exception {
+            ServerMetrics.framesIn.increment();
+            ServerMetrics.bytesIn.add(length);
+            // A PONG only needs to have arrived; it skips the rate limits and the log
+            if (key.equals("PONG")) {
+                return true;
+            }
+            // Too late to act on anything; the client was or is being sent SHUT
+            if (draining && !key.equals("QUIT")) {
+                if (!key.equals("TYPN")) {
+                    refusedWhileDraining.incrementAndGet();
+                    // Only until SHUT is queued; a write after the output is
+                    // shut down would fail and close the connection mid-drain
+                    synchronized (this) {
+                        if (!shutdownSent) {
+                            try {
+                                send("RESP", statusBytes(503));
+                            } catch (IOException e) {
+                                // Closed meanwhile
+                            }
+                        }
                     }
                 }
+                return true;
+            }
+            if (!withinRateLimits(key, value, length)) {
+                if (limitedInARow >= FLOOD_DISCONNECT) {
+                    System.out.println("[Client " + clientId + "] Flooding, disconnecting");
+                    ServerMetrics.floodDisconnects.increment();
+                    return false;
+                }
+                return true;
+            }
+            if (key.equals("PING")) {
+                send("PONG", EMPTY);
+                return true;
+            }
+            // Ephemeral: no RESP, no history, no log line per keystroke
+            if (key.equals("TYPN")) {
+                if (subscribed && length == 1) {
+                    typing.post(clientId, new byte[] {value[0]});
+                }
+                return true;
+            }
+
+            String valueStr = new String(value, 0, length, StandardCharsets.UTF_8);
+            
+            System.out.println("[Client " + clientId + "] Received: " +
+                key + ":" + length + ":" + valueStr);
+
+            ResponseResult result = processCommand(key, value, length);
+            if (result == null) {
+                return false;
+            }
+
+            // Send RESP message directly to the sender. In implicit-ack mode the
+            // echo of a successful command is its acknowledgement, so only
+            // failures (and the OPTS reply itself) get an explicit RESP.
+            if (!implicitAck || result.statusCode != 200 || key.equals("OPTS")) {
+                byte[] resp;
+                if (result.statusCode == 429) {
+                    resp = rateLimited(key, result.requestId);
+                } else if (result.requestId != null) {
+                    resp = (result.statusCode + " " + result.requestId).getBytes(StandardCharsets.UTF_8);
+                } else {
+                    resp = statusBytes(result.statusCode);
+                }
+                send("RESP", resp);
+                System.out.println("[Client " + clientId + "] Sent RESP: "
+                    + new String(resp, StandardCharsets.UTF_8));
+            }
+
+            // Only process and broadcast if status is successful (200)
+            if (result.statusCode == 200 && result.event != null) {
+                // Seq, history and broadcast in one critical section, so every
+                // client receives events, and history stores them, in seq order
+                synchronized (clientList) {
+                    publish(key, result);
+                }
+            } else if (result.statusCode == 200 && result.value != null) {
+                publish(key, result);
+            }
+
+            return !key.equals("QUIT");
+        }
+
+        /**
+         * Number the result's event, if any, and deliver it. Events must be
+         * published with the clientList lock held.
+         */
+        private void publish(String key, ResponseResult result) throws Exception {
+            if (result.event != null) {
+                result.value = result.event.withSeq(nextSeq.incrementAndGet()).encode();
+            }
+            System.out.println("[DEBUG] Raw bytes sent: " + Server.bytesToHex(result.value));
+
+            if (key.equals("MSG")) {
+                addToHistory(new HistoryEntry(result.value, clientId, username), result.event.body);
+            }
+
+            if (key.equals("JOIN")) {
+                subscribe();
+            }
+
+            if (key.equals("READ") || key.equals("SRCH")) {
+                send(result.key, result.value);
+            } else if (key.equals("DM")) {
+                sendDirect(result);
+            } else if (result.requestId != null) {
+                // The sender gets its own message back wrapped with the request id
+                List<KLVExample.KLVMessage> ack = new ArrayList<>();
+                ack.add(new KLVExample.KLVMessage("RQID",
+                    result.requestId.getBytes(StandardCharsets.US_ASCII)));
+                ack.add(new KLVExample.KLVMessage(result.key, result.value));
+                broadCastResponse(result.key, result.value, this, "ACK",
+                    KLVExample.encodeKLVItems(ack));
+            } else {
+                broadCastResponse(result.key, result.value);
+            }
+        }
+
+        /**
+         * Charge a frame to this connection's frame and byte buckets. A frame
+         * over either limit is not processed; the client gets RESP 429 naming
+         * the refused key (and the request id of an implicit-ack MSG, so it
+         * knows which one). QUIT always goes through.
+         */
+        private boolean withinRateLimits(String key, byte[] value, int length) throws IOException {
+            if (key.equals("QUIT")) {
+                return true;
+            }
+            boolean frameOk = frameBucket.tryAcquire();
+            // A frame bigger than the burst could never pass; charge it a full bucket
+            boolean bytesOk = frameOk && byteBucket.tryAcquire(Math.min(8 + length, BYTE_BURST));
+            if (frameOk && bytesOk) {
+                limitedInARow = 0;
+                return true;
+            }
+            if (frameOk) {
+                // Refused for bytes alone; the frame budget is not spent on it
+                frameBucket.refund(1);
+            }
+            limitedInARow++;
+            (frameOk ? ServerMetrics.bytesRateLimited : ServerMetrics.framesRateLimited).increment();
+
+            String requestId = null;
+            if (implicitAck && key.equals("MSG")) {
+                try {
+                    KLVCursor fields = new KLVCursor(value, 0, length);
+                    if (fields.seek("RQID")) {
+                        requestId = fields.valueString();
+                    }
+                } catch (IllegalArgumentException e) {
+                    // Malformed fields; no id to report
+                }
+            }
+            send("RESP", rateLimited(key, requestId));
+            if (limitedInARow == 1) {
+                System.out.println("[Client " + clientId + "] Rate limited (" + key + ")");
+            }
+            return false;
+        }
+
+        /**
+         * RESP value for a refused command: "429", the request id if it had
+         * one, then the command's key, so the client knows what to retry.
+         */
+        private byte[] rateLimited(String key, String requestId) {
+            return ("429 " + (requestId != null ? requestId + " " : "") + key).getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Send SHUT:<reconnect after ms> and shut down output. Both go through
+         * the writer shard in order, so no broadcast can be cut off by them
+         * or follow them.
+         */
+        void shutdownNotice(long reconnectMs) throws IOException {
+            synchronized (this) {
+                shutdownSent = true;
+                send("SHUT", String.valueOf(reconnectMs).getBytes(StandardCharsets.US_ASCII));
+                writers.shutdownOutput(this);
+            }
+        }
+
+        @Override
+        public int id() {
+            return clientId;
+        }
+
+        @Override
+        public KLVCodec.Framing framing() {
+            return codec.framing();
+        }
+
+        @Override
+        public OutputStream output() {
+            return output;
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            socket.shutdownOutput();
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+
+        private void scheduleHeartbeat(long delayMs) {
+            heartbeat = heartbeats.schedule(this::checkIdle, delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Runs on the timer thread. Rather than moving the deadline on every
+         * frame, the handler only stamps lastReadNanos and the check works
+         * out from it when to look again.
+         */
+        private void checkIdle() {
+            if (socket.isClosed()) {
+                return;
+            }
+            long idleMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReadNanos);
+            if (idleMs >= IDLE_TIMEOUT_MS) {
+                System.out.println("[Client " + clientId + "] Idle for " + idleMs + " ms, disconnecting");
+                ServerMetrics.idleDisconnects.increment();
+                // Unblocks the handler's read; its finally does the cleanup
                 try {
                     socket.close();
                 } catch (IOException e) {
                 }
-                System.out.println("[Client " + clientId + "] Disconnected");
+                return;
+            }
+            if (idleMs < PING_INTERVAL_MS) {
+                scheduleHeartbeat(PING_INTERVAL_MS - idleMs);
+                return;
+            }
+            pingSender.execute(() -> {
+                try {
+                    send("PING", EMPTY);
+                } catch (IOException e) {
+                    // The read side sees the broken connection too
+                }
+            });
+            scheduleHeartbeat(Math.min(PING_INTERVAL_MS, IDLE_TIMEOUT_MS - idleMs));
+        }
+
+        /**
+         * A frame's length is over its command's limit and its value is still
+         * on the stream. A modest overshoot is read past in small chunks and
+         * answered with RESP 413, charged like a rate-limited frame; a length
+         * no honest client would send ends the connection. An implicit-ack
+         * MSG's request id is read from the head of the value on the way, so
+         * the client can fail that send.
+         *
+         * @return false if the connection should be closed
+         */
+        private boolean refuseTooLarge(InputStream input, KLVCodec.Header header) throws IOException {
+            ServerMetrics.framesTooLarge.increment();
+            System.out.println("[Client " + clientId + "] " + header.key + " frame of " + header.length
+                + " bytes is over the " + codec.maxLength(header.key) + " byte limit");
+            if (header.length > MAX_SKIP) {
+                return false;
+            }
+            byte[] head = new byte[implicitAck && header.key.equals("MSG")
+                ? Math.min(header.length, 8 + MAX_REQUEST_ID_LENGTH) : 0];
+            KLVStreamReader.readFully(input, head, 0, head.length);
+            KLVStreamReader.skipFully(input, header.length - head.length);
+            ServerMetrics.bytesIn.add(header.length);
+            byteBucket.tryAcquire(Math.min(8 + header.length, BYTE_BURST));
+            String requestId = leadingRequestId(head);
+            send("RESP", requestId == null ? statusBytes(413)
+                : ("413 " + requestId).getBytes(StandardCharsets.UTF_8));
+            return ++limitedInARow < FLOOD_DISCONNECT;
+        }
+
+        /**
+         * The value of an RQID item at the very start of head, or null; the
+         * client puts it first, ahead of the body.
+         */
+        private String leadingRequestId(byte[] head) {
+            if (head.length < 8 || head[0] != 'R' || head[1] != 'Q' || head[2] != 'I' || head[3] != 'D') {
+                return null;
+            }
+            int length = ByteBuffer.wrap(head, 4, 4).getInt();
+            if (length <= 0 || length > head.length - 8) {
+                return null;
+            }
+            String requestId = new String(head, 8, length, StandardCharsets.US_ASCII);
+            return requestId.chars().allMatch(Character::isDigit) ? requestId : null;
+        }
+
+        /**
+         * Deliver a direct message to its recipient's connection and echo it
+         * to the sender (wrapped in an ACK with the request id, if any). Only
+         * these two connections are touched, whatever the size of the room.
+         */
+        private void sendDirect(ResponseResult result) throws Exception {
+            HistoryEntry entry = new HistoryEntry(result.value, clientId, username);
+            entry.recipientId = result.recipientId;
+            entry.recipientName = result.recipientName;
+            addToConversation(username, result.recipientName, entry);
+            ClientHandler recipient = connections.get(result.recipientId);
+            if (recipient != null && recipient != this) {
+                try {
+                    recipient.send("DM", result.value);
+                } catch (IOException e) {
+                    // The recipient's own handler notices the broken connection
+                    System.err.println("[Client " + clientId + "] DM to " + result.recipientId
+                        + " failed: " + e.getMessage());
+                }
             }
+            if (result.requestId != null) {
+                List<KLVExample.KLVMessage> ack = new ArrayList<>();
+                ack.add(new KLVExample.KLVMessage("RQID", result.requestId.getBytes(StandardCharsets.US_ASCII)));
+                ack.add(new KLVExample.KLVMessage("DM", result.value));
+                send("ACK", KLVExample.encodeKLVItems(ack));
+            } else {
+                send("DM", result.value);
+            }
+        }
+
+        /**
+         * Start receiving broadcasts. The NAMS snapshot of everyone's name is
+         * sent under the same lock broadcasts hold, so every JOIN/NAME event
+         * this client does not see is already reflected in the snapshot.
+         */
+        private void subscribe() throws Exception {
+            synchronized (clientList) {
+                if (!subscribed) {
+                    send("NAMS", encodeUserEntries(presence.names(), clientId));
+                    clientList.add(this);
+                    writers.join(this);
+                    connections.put(clientId, this);
+                    subscribed = true;
+                }
+            }
+        }
+
+        /**
+         * Encode a frame in the framing this client uses and queue it on the
+         * connection's writer shard, behind everything sent to it before.
+         * A failed write closes the connection rather than surfacing here.
+         */
+        public void send(String key, byte[] value) throws IOException {
+            if (socket.isClosed()) {
+                throw new IOException("Connection closed");
+            }
+            writers.send(this, key, value);
         }
 
-        private ResponseResult processCommand(String key, byte[] value) throws Exception {
+        /**
+         * Send only if the writer shard is keeping up. A backlog means
+         * connections there are backed up, and an ephemeral event is not
+         * worth queueing behind it.
+         */
+        @Override
+        public boolean trySend(String key, byte[] value) throws IOException {
+            if (socket.isClosed()) {
+                throw new IOException("Connection closed");
+            }
+            return writers.trySend(this, key, value, EPHEMERAL_BACKLOG);
+        }
+
+        private ResponseResult processCommand(String key, byte[] value, int length) throws Exception {
             String name = null;
             switch (key) {
                 case "JOIN":
-                    name = new String(value,  StandardCharsets.UTF_8);
+                    name = new String(value, 0, length, StandardCharsets.UTF_8);
+                    idsByName.remove(username, clientId);
                     if (name.length() != 0)
                         username = name;
-                    String joinMsg = username + " joined";
-                    byte[] joinResponse = KLVExample.encodeKLV("JOIN", joinMsg.getBytes(StandardCharsets.UTF_8));
-                    return new ResponseResult(joinResponse, 200);
+                    presence.online(clientId, username);
+                    idsByName.put(username, clientId);
+                    return ResponseResult.event("JOIN", event("JOIN", username, ""), null);
                     
                 case "NAME":
-                    name = new String(value, StandardCharsets.UTF_8);
-                    String greeting = username + " has changed their name to " + name;
+                    name = new String(value, 0, length, StandardCharsets.UTF_8);
+                    String oldName = username;
                     username = name;
-                    byte[] nameResponse = KLVExample.encodeKLV("NAME", greeting.getBytes(StandardCharsets.UTF_8));
-                    return new ResponseResult(nameResponse, 200);
+                    presence.online(clientId, username);
+                    idsByName.remove(oldName, clientId);
+                    idsByName.put(username, clientId);
+                    return ResponseResult.event("NAME", event("NAME", username, oldName), null);
 
                 case "MSG":
-                    String valueStr = new String(value, StandardCharsets.UTF_8);
+                    String valueStr;
+                    String requestId = null;
+                    if (implicitAck) {
+                        // RQID:<ascii id> followed by BODY:<text>
+                        valueStr = "";
+                        try {
+                            KLVCursor fields = new KLVCursor(value, 0, length);
+                            while (fields.next()) {
+                                if (fields.keyIs("RQID")) {
+                                    requestId = fields.valueString();
+                                } else if (fields.keyIs("BODY")) {
+                                    valueStr = fields.valueString();
+                                }
+                            }
+                        } catch (IllegalArgumentException e) {
+                            return new ResponseResult("MSG", null, 400, requestId);
+                        }
+                    } else {
+                        valueStr = new String(value, 0, length, StandardCharsets.UTF_8);
+                    }
                     // Validate message - empty messages are unsuccessful
                     if (valueStr.trim().isEmpty()) {
-                        return new ResponseResult(null, 400);
+                        return new ResponseResult("MSG", null, 400, requestId);
                     }
-                    valueStr = username + ":\t" + valueStr;
-                    byte[] msgResponse = KLVExample.encodeKLV("MSG", valueStr.getBytes(StandardCharsets.UTF_8));
-                    return new ResponseResult(msgResponse, 200);
+                    return ResponseResult.event("MSG", event("MSG", null, valueStr), requestId);
+
+                case "DM":
+                    // TO (user id, 4 bytes) or TONM (name), BODY, optional RQID
+                    int recipientId = -1;
+                    String dmBody = "";
+                    String dmRequestId = null;
+                    try {
+                        KLVCursor dm = new KLVCursor(value, 0, length);
+                        while (dm.next()) {
+                            if (dm.keyIs("TO")) {
+                                recipientId = dm.valueInt();
+                            } else if (dm.keyIs("TONM")) {
+                                Integer id = idsByName.get(dm.valueString());
+                                recipientId = id != null ? id : -1;
+                            } else if (dm.keyIs("BODY")) {
+                                dmBody = dm.valueString();
+                            } else if (dm.keyIs("RQID")) {
+                                dmRequestId = dm.valueString();
+                            }
+                        }
+                    } catch (IllegalArgumentException e) {
+                        // Not KLV, or a field of the wrong width
+                        return new ResponseResult("DM", null, 400, dmRequestId);
+                    }
+                    if (dmBody.trim().isEmpty()) {
+                        return new ResponseResult("DM", null, 400, dmRequestId);
+                    }
+                    if (recipientId < 0 || !connections.containsKey(recipientId)) {
+                        // 404: nobody online by that id or name
+                        return new ResponseResult("DM", null, 404, dmRequestId);
+                    }
+                    ResponseResult direct = ResponseResult.event("DM", new ChatRecord("DM", clientId, null,
+                        0, System.currentTimeMillis(), dmBody, recipientId), dmRequestId);
+                    direct.recipientId = recipientId;
+                    String recipientName = presence.names().get(recipientId);
+                    direct.recipientName = recipientName != null ? recipientName : "user" + recipientId;
+                    return direct;
+
+                case "OPTS":
+                    String option = new String(value, 0, length, StandardCharsets.UTF_8);
+                    if (option.equals("implicit-ack")) {
+                        implicitAck = true;
+                        return new ResponseResult("OPTS", null, 200);
+                    }
+                    return new ResponseResult("OPTS", null, 400);
+
+                case "WHO":
+                    // Snapshot now, PRES diffs from the next tick on
+                    presence.subscribe(this);
+                    return new ResponseResult("WHO", null, 200);
 
                 case "TIME":
                     String timestamp = LocalDateTime.now().format(
                         DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-                    byte[] timeResponse = KLVExample.encodeKLV("TIME", timestamp.getBytes(StandardCharsets.UTF_8));
-                    return new ResponseResult(timeResponse, 200);
+                    return new ResponseResult("TIME", timestamp.getBytes(StandardCharsets.UTF_8), 200);
                     
                 case "READ":
-                    List<String> history = getHistory();
-                    String historyText;
-                    if (history.isEmpty()) {
-                        historyText = "No message history available.";
-                    } else {
-                        historyText = String.join("\n", history);
+                    if (!readBucket.tryAcquire()) {
+                        // 429 Too Many Requests; the client backs off and asks again
+                        ServerMetrics.readsRateLimited.increment();
+                        return new ResponseResult("READ", null, 429);
+                    }
+                    // Optional paging fields: BFOR or AFTR (seq, 8 bytes), CNT (4 bytes),
+                    // and WNAM (name) or WITH (id of someone online, 4 bytes) for
+                    // the direct messages with that user
+                    String with = null;
+                    String withKey = null;
+                    byte[] withValue = null;
+                    long after = -1;
+                    long before = Long.MAX_VALUE;
+                    int count = MAX_HISTORY_SIZE;
+                    String pageKey = null;
+                    // Anything that is not KLV at all (the old READ:length:text)
+                    // still asks for the latest page
+                    if (isKLV(value, length)) {
+                        try {
+                            KLVCursor paging = new KLVCursor(value, 0, length);
+                            while (paging.next()) {
+                                if (paging.keyIs("AFTR")) {
+                                    after = paging.valueLong();
+                                    pageKey = "AFTR";
+                                } else if (paging.keyIs("BFOR")) {
+                                    before = paging.valueLong();
+                                    pageKey = pageKey == null ? "BFOR" : pageKey;
+                                } else if (paging.keyIs("CNT")) {
+                                    count = Math.max(0, Math.min(paging.valueInt(), HISTORY_CAPACITY));
+                                } else if (paging.keyIs("WITH")) {
+                                    int withId = paging.valueInt();
+                                    with = presence.names().getOrDefault(withId, "");
+                                    withKey = "WITH";
+                                    withValue = paging.value();
+                                } else if (paging.keyIs("WNAM")) {
+                                    with = paging.valueString();
+                                    withKey = "WNAM";
+                                    withValue = paging.value();
+                                }
+                            }
+                        } catch (IllegalArgumentException e) {
+                            // A paging field of the wrong width
+                            return new ResponseResult("READ", null, 400);
+                        }
+                    }
+
+                    // The paging field is echoed first so the client knows where
+                    // the page goes, then USER items naming every sender (as they
+                    // were called at the time), then one MSG item per record
+                    List<HistoryEntry> history = with != null
+                        ? getConversation(username, with, after, before, count)
+                        : getHistory(after, before, count);
+                    Map<Integer, String> senders = new LinkedHashMap<>();
+                    for (HistoryEntry entry : history) {
+                        senders.put(entry.senderId, entry.senderName);
+                        if (entry.recipientName != null) {
+                            senders.put(entry.recipientId, entry.recipientName);
+                        }
+                    }
+                    List<KLVExample.KLVMessage> items = new ArrayList<>(senders.size() + history.size() + 2);
+                    if (withKey != null) {
+                        items.add(new KLVExample.KLVMessage(withKey, withValue));
+                    }
+                    if (pageKey != null) {
+                        long pageSeq = pageKey.equals("AFTR") ? after : before;
+                        items.add(new KLVExample.KLVMessage(pageKey,
+                            ByteBuffer.allocate(8).putLong(pageSeq).array()));
+                    }
+                    for (Map.Entry<Integer, String> sender : senders.entrySet()) {
+                        items.add(new KLVExample.KLVMessage("USER",
+                            UserTable.encodeEntry(sender.getKey(), sender.getValue())));
                     }
-                    byte[] readResponse = KLVExample.encodeKLV("READ", historyText.getBytes(StandardCharsets.UTF_8));
-                    return new ResponseResult(readResponse, 200);
+                    for (HistoryEntry entry : history) {
+                        items.add(new KLVExample.KLVMessage("MSG", entry.record));
+                    }
+                    return new ResponseResult("READ", KLVExample.encodeKLVItems(items), 200);
                     
+                case "SRCH":
+                    if (!readBucket.tryAcquire()) {
+                        ServerMetrics.readsRateLimited.increment();
+                        return new ResponseResult("SRCH", null, 429);
+                    }
+                    // QURY (UTF-8 words), optional OFFS and CNT (4 bytes each)
+                    String query = "";
+                    int offset = 0;
+                    int limit = MAX_HISTORY_SIZE;
+                    try {
+                        KLVCursor search = new KLVCursor(value, 0, length);
+                        while (search.next()) {
+                            if (search.keyIs("QURY")) {
+                                query = search.valueString();
+                            } else if (search.keyIs("OFFS")) {
+                                offset = Math.max(0, Math.min(search.valueInt(), HISTORY_CAPACITY));
+                            } else if (search.keyIs("CNT")) {
+                                limit = Math.max(0, Math.min(search.valueInt(), MAX_SEARCH_RESULTS));
+                            }
+                        }
+                    } catch (IllegalArgumentException e) {
+                        return new ResponseResult("SRCH", null, 400);
+                    }
+                    if (query.trim().isEmpty()) {
+                        return new ResponseResult("SRCH", null, 400);
+                    }
+
+                    // QURY and OFFS echoed, TOTL (4 bytes) matches in all
+                    // (approximate: it can include messages evicted since the last trim),
+                    // then USER and MSG items like a READ page, best first
+                    int[] total = new int[1];
+                    List<HistoryEntry> found = search(query, offset, limit, total);
+                    Map<Integer, String> authors = new LinkedHashMap<>();
+                    for (HistoryEntry entry : found) {
+                        authors.put(entry.senderId, entry.senderName);
+                    }
+                    List<KLVExample.KLVMessage> results = new ArrayList<>(authors.size() + found.size() + 3);
+                    results.add(new KLVExample.KLVMessage("QURY", query.getBytes(StandardCharsets.UTF_8)));
+                    results.add(new KLVExample.KLVMessage("OFFS", ByteBuffer.allocate(4).putInt(offset).array()));
+                    results.add(new KLVExample.KLVMessage("TOTL", ByteBuffer.allocate(4).putInt(total[0]).array()));
+                    for (Map.Entry<Integer, String> author : authors.entrySet()) {
+                        results.add(new KLVExample.KLVMessage("USER",
+                            UserTable.encodeEntry(author.getKey(), author.getValue())));
+                    }
+                    for (HistoryEntry entry : found) {
+                        results.add(new KLVExample.KLVMessage("MSG", entry.record));
+                    }
+                    return new ResponseResult("SRCH", KLVExample.encodeKLVItems(results), 200);
+
                 case "QUIT":
-                    String leaving = username + " has left :(";
-                    byte[] quitResponse = KLVExample.encodeKLV("QUIT", leaving.getBytes(StandardCharsets.UTF_8));
-                    return new ResponseResult(quitResponse, 200);
+                    return ResponseResult.event("QUIT", event("QUIT", null, ""), null);
 
                 default:
                     String error = "Unknown command: " + key;
-                    byte[] errResponse = KLVExample.encodeKLV("ERR", error.getBytes(StandardCharsets.UTF_8));
-                    return new ResponseResult(errResponse, 400);
+                    return new ResponseResult("ERR", error.getBytes(StandardCharsets.UTF_8), 400);
             }
         }
 
-        private KLVMessage readKLVFromSocket(InputStream input) throws IOException {
-            byte[] keyBytes = recvExact(input, 4);
-            if (keyBytes == null) return null;
-
-            byte[] lengthBytes = recvExact(input, 4);
-            if (lengthBytes == null) return null;
-
-            ByteBuffer lengthBuffer = ByteBuffer.wrap(lengthBytes);
-            int length = lengthBuffer.getInt();
-
-            byte[] valueBytes = recvExact(input, length);
-            if (valueBytes == null) return null;
-
-            int keyLength = 4;
-            for (int i = 0; i < 4; i++) {
-                if (keyBytes[i] == 0) {
-                    keyLength = i;
-                    break;
-                }
-            }
-            String key = new String(keyBytes, 0, keyLength, StandardCharsets.US_ASCII);
-
-            return new KLVMessage(key, valueBytes);
+        /**
+         * Build an event from this client. Its seq is assigned when it is
+         * published, under the clientList lock.
+         *
+         * @param name sender name to embed, or null to refer to the sender by id only
+         */
+        private ChatRecord event(String type, String name, String body) {
+            return new ChatRecord(type, clientId, name, 0, System.currentTimeMillis(), body);
         }
+    }
 
-        private byte[] recvExact(InputStream input, int numBytes) throws IOException {
-            byte[] data = new byte[numBytes];
-            int totalRead = 0;
-
-            while (totalRead < numBytes) {
-                int bytesRead = input.read(data, totalRead, numBytes - totalRead);
-                if (bytesRead == -1) {
-                    return null;
-                }
-                totalRead += bytesRead;
+    /**
+     * Whether the first length bytes of value are a sequence of whole KLV
+     * items, whatever the widths of their values.
+     */
+    private static boolean isKLV(byte[] value, int length) {
+        try {
+            KLVCursor items = new KLVCursor(value, 0, length);
+            while (items.next()) {
             }
-
-
-            return data;
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
         }
     }
 
@@ -289,42 +1199,101 @@ public class Server {
         return sb.toString();
     }
 
-    static class KLVMessage {
+    /**
+     * Value of a NAMS frame: SELF with the receiver's own id, so it can
+     * rejoin under its current name after a reconnect, EPOC (8 bytes) so it
+     * can tell a restarted server's seqs from the old ones, then one USER
+     * item (id + name) per user.
+     */
+    private static byte[] encodeUserEntries(Map<Integer, String> users, int selfId) throws Exception {
+        List<KLVExample.KLVMessage> items = new ArrayList<>();
+        items.add(new KLVExample.KLVMessage("SELF", ByteBuffer.allocate(4).putInt(selfId).array()));
+        items.add(new KLVExample.KLVMessage("EPOC", ByteBuffer.allocate(8).putLong(EPOCH).array()));
+        for (Map.Entry<Integer, String> user : users.entrySet()) {
+            items.add(new KLVExample.KLVMessage("USER", UserTable.encodeEntry(user.getKey(), user.getValue())));
+        }
+        return KLVExample.encodeKLVItems(items);
+    }
+
+    static class HistoryEntry {
+        byte[] record;
+        long seq;
+        int senderId;
+        String senderName;
+        // Direct messages only: who it went to, and what they were called
+        int recipientId = -1;
+        String recipientName;
+
+        HistoryEntry(byte[] record, int senderId, String senderName) {
+            this.record = record;
+            this.senderId = senderId;
+            this.senderName = senderName;
+            KLVCursor fields = new KLVCursor(record);
+            this.seq = fields.seek("SEQ") ? fields.valueLong() : 0;
+        }
+    }
+
+    static class ResponseResult {
         String key;
         byte[] value;
+        int statusCode;
+        String requestId;
+        // Set for a DM: the one connection it goes to, and that user's name
+        int recipientId = -1;
+        String recipientName;
+        // An event still to be given its seq; value is its encoding once it has one
+        ChatRecord event;
 
-        KLVMessage(String key, byte[] value) {
+        ResponseResult(String key, byte[] value, int statusCode) {
+            this(key, value, statusCode, null);
+        }
+
+        ResponseResult(String key, byte[] value, int statusCode, String requestId) {
             this.key = key;
             this.value = value;
+            this.statusCode = statusCode;
+            this.requestId = requestId;
+        }
+
+        /**
+         * A successful command whose event is published to other clients.
+         */
+        static ResponseResult event(String key, ChatRecord event, String requestId) {
+            ResponseResult result = new ResponseResult(key, null, 200, requestId);
+            result.event = event;
+            return result;
         }
     }
 
-    static class ResponseResult {
-        byte[] response;
-        int statusCode;
 
-        ResponseResult(byte[] response, int statusCode) {
-            this.response = response;
-            this.statusCode = statusCode;
+    private static List<ClientHandler> joinedClients() {
+        synchronized (clientList) {
+            return new ArrayList<>(clientList);
         }
     }
 
+    private static byte[] statusBytes(int statusCode) {
+        return statusBytes.computeIfAbsent(statusCode,
+            code -> String.valueOf(code).getBytes(StandardCharsets.UTF_8));
+    }
 
-    public static void broadCastResponse(byte[] response) {
-        synchronized (outputStreamList) {
-            System.out.println("[Broadcast] Sending to " + outputStreamList.size() + " client(s)");
-            outputStreamList.removeIf(output -> {
-                try {
-                    output.write(response);
-                    output.flush();
-                    System.out.println("[Broadcast] Successfully sent to one client");
-                    return false;
-                } catch (Exception e) {
-                    System.err.println("[Broadcast] Failed to send to client: " + e.getMessage());
-                    return true;
-                }
-            });
-            System.out.println("[Broadcast] Remaining clients: " + outputStreamList.size());
+    public static void broadCastResponse(String key, byte[] value) {
+        broadCastResponse(key, value, null, null, null);
+    }
+
+    /**
+     * Broadcast a frame, sending {@code sender} a different frame in the same
+     * slot so its acknowledgement is ordered exactly like everyone's copy.
+     * Only queues it: each writer shard writes it to its own connections.
+     * Under the clientList lock so it is ordered with subscribe()'s NAMS.
+     */
+    private static void broadCastResponse(String key, byte[] value,
+                                          ClientHandler sender, String senderKey, byte[] senderValue) {
+        ServerMetrics.broadcasts.increment();
+        synchronized (clientList) {
+            System.out.println("[Broadcast] Sending to " + clientList.size() + " client(s)"
+                + " across " + writers.shardCount() + " writer(s)");
+            writers.broadcast(key, value, sender, senderKey, senderValue);
         }
     }
 
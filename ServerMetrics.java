@@ -0,0 +1,71 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide server counters. Handlers bump them on every frame, so they
+ * are LongAdders: no lock, no allocation, and no contention between
+ * connections. A daemon thread logs a snapshot at a fixed interval
+ * (chat.metricsInterval seconds, 0 to disable).
+ */
+public final class ServerMetrics {
+
+    static final LongAdder framesIn = new LongAdder();
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder framesRateLimited = new LongAdder();
+    static final LongAdder bytesRateLimited = new LongAdder();
+    static final LongAdder readsRateLimited = new LongAdder();
+    static final LongAdder framesTooLarge = new LongAdder();
+    static final LongAdder floodDisconnects = new LongAdder();
+    static final LongAdder idleDisconnects = new LongAdder();
+    static final LongAdder connectionsAccepted = new LongAdder();
+    static final LongAdder connectionsRejected = new LongAdder();
+    static final LongAdder broadcasts = new LongAdder();
+    static final LongAdder broadcastFailures = new LongAdder();
+    static final LongAdder slowConsumers = new LongAdder();
+    static final LongAdder ephemeralSent = new LongAdder();
+    static final LongAdder ephemeralDropped = new LongAdder();
+
+    private static final int INTERVAL_SECONDS = Integer.getInteger("chat.metricsInterval", 60);
+
+    private ServerMetrics() {
+    }
+
+    static void startReporter() {
+        if (INTERVAL_SECONDS <= 0) {
+            return;
+        }
+        Thread reporter = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(INTERVAL_SECONDS * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.out.println("[Metrics] " + snapshot());
+                System.out.println("[Metrics] pool " + Server.buffers.stats());
+                System.out.println("[Metrics] writers shards=" + Server.writers.shardCount()
+                    + " backlog=" + Server.writers.backlog());
+                Server.buffers.reportLeaks(INTERVAL_SECONDS * 1000L);
+            }
+        }, "metrics-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    static String snapshot() {
+        return "framesIn=" + framesIn.sum()
+            + " bytesIn=" + bytesIn.sum()
+            + " framesRateLimited=" + framesRateLimited.sum()
+            + " bytesRateLimited=" + bytesRateLimited.sum()
+            + " readsRateLimited=" + readsRateLimited.sum()
+            + " framesTooLarge=" + framesTooLarge.sum()
+            + " floodDisconnects=" + floodDisconnects.sum()
+            + " idleDisconnects=" + idleDisconnects.sum()
+            + " connectionsAccepted=" + connectionsAccepted.sum()
+            + " connectionsRejected=" + connectionsRejected.sum()
+            + " broadcasts=" + broadcasts.sum()
+            + " broadcastFailures=" + broadcastFailures.sum()
+            + " slowConsumers=" + slowConsumers.sum()
+            + " ephemeralSent=" + ephemeralSent.sum()
+            + " ephemeralDropped=" + ephemeralDropped.sum();
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Token bucket rate limiter: holds up to {@code burst} tokens and refills
+ * at {@code ratePerSecond}. The refill is worked out from the clock on each
+ * call, so an idle bucket costs nothing and no timer thread is needed.
+ */
+public class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double ratePerSecond, double burst) {
+        if (ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate must be positive and burst at least 1");
+        }
+        this.tokensPerNano = ratePerSecond / 1_000_000_000.0;
+        this.capacity = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public synchronized boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    /**
+     * Take n tokens if they are all there.
+     */
+    public synchronized boolean tryAcquire(double n) {
+        refill();
+        if (tokens < n) {
+            return false;
+        }
+        tokens -= n;
+        return true;
+    }
+
+    /**
+     * Give back n tokens taken for something that was then not done,
+     * never filling past the burst.
+     */
+    public synchronized void refund(double n) {
+        tokens = Math.min(capacity, tokens + n);
+    }
+
+    /**
+     * @return how long until n tokens will be available, 0 if they are now
+     */
+    public synchronized long millisUntilAvailable(double n) {
+        refill();
+        if (tokens >= n) {
+            return 0;
+        }
+        return (long) Math.ceil((n - tokens) / tokensPerNano / 1_000_000.0);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,89 @@
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Client-side table of user names by the numeric ids the server assigns.
+ * Every connection gets a fresh id and ids are never reused, so they grow
+ * without bound over a long session; a hash map keeps lookups O(1) when
+ * rendering every message row without sizing anything by the largest id.
+ *
+ * The listener thread writes, the EDT reads; both go through the table's
+ * monitor, which is uncontended in practice.
+ */
+public class UserTable {
+
+    private final Map<Integer, String> names = new HashMap<>();
+
+    public synchronized void put(int id, String name) {
+        if (id >= 0) {
+            names.put(id, name);
+        }
+    }
+
+    /**
+     * Forget every name, e.g. when a restarted server hands out ids afresh.
+     */
+    public synchronized void clear() {
+        names.clear();
+    }
+
+    /**
+     * Record a name only if the id is not known yet, so a current name is
+     * never replaced by an older one from history.
+     */
+    public synchronized void putIfAbsent(int id, String name) {
+        if (id >= 0) {
+            names.putIfAbsent(id, name);
+        }
+    }
+
+    /**
+     * Record the USER entry the cursor is positioned on: a 4-byte id
+     * followed by the UTF-8 name.
+     */
+    public void putEntry(KLVCursor entry, boolean overwrite) {
+        putEntry(entry.array(), entry.valueOffset(), entry.valueLength(), overwrite);
+    }
+
+    /**
+     * Record a USER entry value read on its own.
+     */
+    public void putEntry(byte[] entry, boolean overwrite) {
+        putEntry(entry, 0, entry.length, overwrite);
+    }
+
+    private void putEntry(byte[] data, int offset, int length, boolean overwrite) {
+        if (length < 4) {
+            return;
+        }
+        int id = KLVCursor.readInt(data, offset);
+        String name = new String(data, offset + 4, length - 4, StandardCharsets.UTF_8);
+        if (overwrite) {
+            put(id, name);
+        } else {
+            putIfAbsent(id, name);
+        }
+    }
+
+    /**
+     * @return the user's name, or null if the id has never been announced
+     */
+    public synchronized String name(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * Encode a USER entry value as read by {@link #putEntry}.
+     */
+    public static byte[] encodeEntry(int id, String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] entry = new byte[4 + nameBytes.length];
+        entry[0] = (byte) (id >>> 24);
+        entry[1] = (byte) (id >>> 16);
+        entry[2] = (byte) (id >>> 8);
+        entry[3] = (byte) id;
+        System.arraycopy(nameBytes, 0, entry, 4, nameBytes.length);
+        return entry;
+    }
+}
@@ -0,0 +1,362 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writer threads that do every socket write, so a broadcast is spread
+ * across cores instead of run recipient by recipient on the sender's thread.
+ *
+ * Connections are split into shards by id % shards, and each shard's thread
+ * alone writes to its connections. Each shard has one FIFO that holds both
+ * frames for a single connection and whole broadcasts; a broadcast costs the
+ * sender one enqueue per shard, and each shard writes it to its own joined
+ * connections. Because everything bound for a connection passes through the
+ * same FIFO in the order it was submitted, per-recipient order is exactly
+ * the order of the calls here.
+ *
+ * A blocking write to a client that stopped reading would hold up its whole
+ * shard, so a watchdog closes any connection whose write has taken longer
+ * than the write timeout; the write then fails and the shard moves on.
+ */
+public final class WriterPool {
+
+    /**
+     * A connection the pool writes to on behalf of its owner.
+     */
+    interface Connection {
+        int id();
+
+        KLVCodec.Framing framing();
+
+        OutputStream output();
+
+        void shutdownOutput() throws IOException;
+
+        void close();
+    }
+
+    /**
+     * An encoded frame in a pooled array, shared by every queue it is on and
+     * released when the last of them is done with it.
+     */
+    static final class Frame {
+        final byte[] data;
+        final int length;
+        private final BufferPool pool;
+        private final AtomicInteger refs;
+
+        Frame(BufferPool pool, KLVCodec.Framing framing, String key, byte[] value, int refs) {
+            this.pool = pool;
+            this.data = pool.acquire(KLVCodec.encodedLength(framing, key, value.length));
+            this.length = KLVCodec.encodeInto(framing, key, value, value.length, data);
+            this.refs = new AtomicInteger(refs);
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                pool.release(data);
+            }
+        }
+    }
+
+    private enum Kind { SEND, BROADCAST, JOIN, LEAVE, SHUTDOWN_OUTPUT, CLOSE }
+
+    private static final class Item {
+        final Kind kind;
+        final Connection connection;
+        // SEND: frame for the connection. BROADCAST: one frame per framing,
+        // and a different frame for the sender if it is in this shard.
+        final Frame frame;
+        final Frame[] frames;
+        final Frame senderFrame;
+
+        Item(Kind kind, Connection connection, Frame frame, Frame[] frames, Frame senderFrame) {
+            this.kind = kind;
+            this.connection = connection;
+            this.frame = frame;
+            this.frames = frames;
+            this.senderFrame = senderFrame;
+        }
+    }
+
+    private final BufferPool pool;
+    private final Shard[] shards;
+    private final long writeTimeoutNanos;
+    private final Thread watchdog;
+
+    /**
+     * @param queueCapacity items a shard may have waiting; past that,
+     *                      submitting blocks until the shard catches up
+     */
+    public WriterPool(BufferPool pool, int shardCount, int queueCapacity, long writeTimeoutMs) {
+        this.pool = pool;
+        this.shards = new Shard[Math.max(1, shardCount)];
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMs);
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard("writer-" + i, queueCapacity);
+        }
+        watchdog = new Thread(this::watch, "writer-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Queue a frame for one connection.
+     */
+    public void send(Connection connection, String key, byte[] value) {
+        submit(connection, new Item(Kind.SEND, connection,
+            new Frame(pool, connection.framing(), key, value, 1), null, null));
+    }
+
+    /**
+     * Queue a frame for one connection only if its shard has at most
+     * maxBacklog items waiting; for frames that are fine to lose.
+     *
+     * @return false if it was dropped
+     */
+    public boolean trySend(Connection connection, String key, byte[] value, int maxBacklog) {
+        if (shard(connection).queue.size() > maxBacklog) {
+            return false;
+        }
+        send(connection, key, value);
+        return true;
+    }
+
+    /**
+     * Queue a frame for every joined connection, with {@code sender} (if
+     * joined) getting senderKey/senderValue in its place. Frames are encoded
+     * once per framing, not once per recipient.
+     */
+    public void broadcast(String key, byte[] value, Connection sender, String senderKey, byte[] senderValue) {
+        KLVCodec.Framing[] framings = KLVCodec.Framing.values();
+        Frame[] frames = new Frame[framings.length];
+        for (KLVCodec.Framing framing : framings) {
+            frames[framing.ordinal()] = new Frame(pool, framing, key, value, shards.length);
+        }
+        Shard senderShard = sender == null ? null : shard(sender);
+        for (Shard shard : shards) {
+            Frame senderFrame = shard == senderShard
+                ? new Frame(pool, sender.framing(), senderKey, senderValue, 1) : null;
+            shard.put(new Item(Kind.BROADCAST, sender, null, frames, senderFrame));
+        }
+    }
+
+    /**
+     * Start including the connection in broadcasts submitted after this.
+     */
+    public void join(Connection connection) {
+        submit(connection, new Item(Kind.JOIN, connection, null, null, null));
+    }
+
+    public void leave(Connection connection) {
+        submit(connection, new Item(Kind.LEAVE, connection, null, null, null));
+    }
+
+    /**
+     * Shut down the connection's output once everything queued before it is written.
+     */
+    public void shutdownOutput(Connection connection) {
+        submit(connection, new Item(Kind.SHUTDOWN_OUTPUT, connection, null, null, null));
+    }
+
+    /**
+     * Leave broadcasts and close the connection once everything queued
+     * before it is written, so a last reply is not cut off.
+     */
+    public void close(Connection connection) {
+        submit(connection, new Item(Kind.CLOSE, connection, null, null, null));
+    }
+
+    /**
+     * Let the shards write what they have queued, for at most timeoutMs,
+     * then stop them.
+     */
+    public void stop(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (Shard shard : shards) {
+            shard.stopping = true;
+            shard.queue.offer(new Item(Kind.CLOSE, null, null, null, null));
+        }
+        for (Shard shard : shards) {
+            shard.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            shard.thread.interrupt();
+        }
+        watchdog.interrupt();
+    }
+
+    /**
+     * Items waiting across all shards, for reporting.
+     */
+    public int backlog() {
+        int backlog = 0;
+        for (Shard shard : shards) {
+            backlog += shard.queue.size();
+        }
+        return backlog;
+    }
+
+    private Shard shard(Connection connection) {
+        return shards[Math.floorMod(connection.id(), shards.length)];
+    }
+
+    private void submit(Connection connection, Item item) {
+        shard(connection).put(item);
+    }
+
+    private void watch() {
+        long tickMs = Math.max(10, TimeUnit.NANOSECONDS.toMillis(writeTimeoutNanos) / 4);
+        while (true) {
+            try {
+                Thread.sleep(tickMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Shard shard : shards) {
+                Connection stuck = shard.writing;
+                if (stuck != null && now - shard.writingSince > writeTimeoutNanos) {
+                    System.out.println("[Writer] Client " + stuck.id() + " not reading for "
+                        + TimeUnit.NANOSECONDS.toMillis(now - shard.writingSince) + " ms, disconnecting");
+                    ServerMetrics.slowConsumers.increment();
+                    // Unblocks the write with an exception
+                    stuck.close();
+                }
+            }
+        }
+    }
+
+    private final class Shard {
+        final BlockingQueue<Item> queue;
+        final Thread thread;
+        // Only touched by this shard's thread
+        private final List<Connection> joined = new ArrayList<>();
+        // The write in progress, for the watchdog
+        volatile Connection writing;
+        volatile long writingSince;
+        volatile boolean stopping = false;
+
+        Shard(String name, int capacity) {
+            queue = new LinkedBlockingQueue<>(capacity);
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void put(Item item) {
+            try {
+                queue.put(item);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                release(item);
+            }
+        }
+
+        private void run() {
+            while (true) {
+                Item item;
+                try {
+                    item = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (item.connection == null && item.kind == Kind.CLOSE) {
+                    if (stopping) {
+                        return;
+                    }
+                    continue;
+                }
+                try {
+                    process(item);
+                } catch (RuntimeException e) {
+                    System.err.println("[Writer] " + item.kind + " failed: " + e);
+                } finally {
+                    release(item);
+                }
+            }
+        }
+
+        private void process(Item item) {
+            switch (item.kind) {
+                case SEND:
+                    write(item.connection, item.frame);
+                    break;
+                case BROADCAST:
+                    for (int i = joined.size() - 1; i >= 0; i--) {
+                        Connection connection = joined.get(i);
+                        Frame frame = connection == item.connection
+                            ? item.senderFrame : item.frames[connection.framing().ordinal()];
+                        if (frame != null && !write(connection, frame)) {
+                            ServerMetrics.broadcastFailures.increment();
+                            // Order does not matter, so remove by swapping in the last
+                            joined.set(i, joined.get(joined.size() - 1));
+                            joined.remove(joined.size() - 1);
+                        }
+                    }
+                    break;
+                case JOIN:
+                    if (!joined.contains(item.connection)) {
+                        joined.add(item.connection);
+                    }
+                    break;
+                case LEAVE:
+                    joined.remove(item.connection);
+                    break;
+                case SHUTDOWN_OUTPUT:
+                    try {
+                        item.connection.shutdownOutput();
+                    } catch (IOException e) {
+                        // Already closed
+                    }
+                    break;
+                case CLOSE:
+                    joined.remove(item.connection);
+                    item.connection.close();
+                    break;
+            }
+        }
+
+        /**
+         * @return false if the write failed; the connection is closed and its
+         *         handler cleans up when its read fails
+         */
+        private boolean write(Connection connection, Frame frame) {
+            writingSince = System.nanoTime();
+            writing = connection;
+            try {
+                OutputStream output = connection.output();
+                output.write(frame.data, 0, frame.length);
+                output.flush();
+                return true;
+            } catch (IOException e) {
+                System.err.println("[Writer] Write to client " + connection.id() + " failed: " + e.getMessage());
+                connection.close();
+                return false;
+            } finally {
+                writing = null;
+            }
+        }
+
+        private void release(Item item) {
+            if (item.frame != null) {
+                item.frame.release();
+            }
+            if (item.frames != null) {
+                for (Frame frame : item.frames) {
+                    frame.release();
+                }
+            }
+            if (item.senderFrame != null) {
+                item.senderFrame.release();
+            }
+        }
+    }
+}